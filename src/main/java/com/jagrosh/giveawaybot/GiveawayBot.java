@@ -17,7 +17,14 @@ package com.jagrosh.giveawaybot;
 
 import com.jagrosh.giveawaybot.commands.*;
 import com.jagrosh.giveawaybot.data.Database;
+import com.jagrosh.giveawaybot.data.MVStoreStorage;
+import com.jagrosh.giveawaybot.data.MemoryStorage;
+import com.jagrosh.giveawaybot.data.MutationWriter;
+import com.jagrosh.giveawaybot.data.ObjectDbStorage;
+import com.jagrosh.giveawaybot.data.ShardedStorage;
+import com.jagrosh.giveawaybot.data.Storage;
 import com.jagrosh.giveawaybot.entities.*;
+import com.jagrosh.giveawaybot.util.BoundedExecutor;
 import com.jagrosh.interactions.InteractionsClient;
 import com.jagrosh.interactions.command.Command;
 import com.jagrosh.interactions.components.*;
@@ -26,6 +33,7 @@ import com.jagrosh.interactions.requests.RestClient;
 import com.jagrosh.interactions.requests.Route;
 import com.typesafe.config.Config;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 
@@ -51,6 +59,7 @@ public class GiveawayBot
     private final PremiumChecker premium;
     private final Uptimer uptimer;
     private final ServerCountUpdater countUpdater;
+    private final BoundedExecutor downloads;
     
     protected GiveawayBot(Config config)
     {
@@ -64,7 +73,12 @@ public class GiveawayBot
         controlChannel = config.hasPath("control-channel") ? config.getLong("control-channel") : 0L;
         
         // connect to the database
-        database = new Database(config.getString("database.host"), config.getString("database.user"), config.getString("database.pass"));
+        database = new Database(createStorage(config.getConfig("database")),
+                config.hasPath("database.journal") ? config.getString("database.journal") : null,
+                config.hasPath("database.snapshot") ? config.getString("database.snapshot") : null,
+                MutationWriter.Durability.valueOf(config.getString("database.durability").toUpperCase()));
+        if(config.getLong("database.user-ttl") > 0)
+            database.startUserCompaction(config.getLong("database.user-ttl"));
         webhook.send(WebhookLog.Level.INFO, String.format("Database contains `%d` giveaways", database.countAllGiveaways()));
         
         // instantiate the remaing components
@@ -73,9 +87,13 @@ public class GiveawayBot
         EmojiParser emojis = new EmojiParser(config.getConfig("emojis").getStringList("free"));
         restClient = new RestClient(config.getString("bot-token"));
         premium = new PremiumChecker(database, webhook, config.getString("checker-token"));
-        manager = new GiveawayManager(database, restClient, uploader, emojis, botId);
+        manager = new GiveawayManager(database, restClient, uploader, emojis, botId, config.getInt("endings.threads"), 
+                config.getInt("endings.queue"), config.getInt("endings.timeout"), config.getInt("endings.requests"), 
+                config.getString("summary.format").equalsIgnoreCase("json") ? null 
+                        : CompactSummary.Compression.valueOf(config.getString("summary.compression").toUpperCase()));
         uptimer = new Uptimer(this);
         countUpdater = new ServerCountUpdater(this, config.getConfig("bot-lists").entrySet().stream().collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue().unwrapped().toString())));
+        downloads = new BoundedExecutor("summary-download", 4, 100, 30, TimeUnit.SECONDS);
         
         // instantiate commands
         Command[] commands = 
@@ -148,6 +166,7 @@ public class GiveawayBot
                 premium.shutdown();
                 manager.shutdown();
                 uploader.shutdown();
+                downloads.shutdown(5, TimeUnit.SECONDS);
                 webhook.sendBlocking(WebhookLog.Level.INFO, "Shutting down...  `" + reason + "`");
                 webhook.shutdown();
                 Thread.sleep(500);
@@ -185,6 +204,35 @@ public class GiveawayBot
         return restClient;
     }
     
+    private static Storage createStorage(Config config)
+    {
+        int shards = config.hasPath("shards") ? config.getInt("shards") : 1;
+        if(shards <= 1)
+            return createStorage(config, -1);
+        Storage[] storages = new Storage[shards];
+        for(int i = 0; i < shards; i++)
+            storages[i] = createStorage(config, i);
+        return new ShardedStorage(storages);
+    }
+    
+    private static Storage createStorage(Config config, int shard)
+    {
+        switch(config.getString("engine").toLowerCase())
+        {
+            case "objectdb":
+                String host = config.getString("host");
+                return new ObjectDbStorage(shard < 0 ? host : ShardedStorage.shardName(host, shard), config.getString("user"), config.getString("pass"), 
+                        config.hasPath("pool-size") ? config.getInt("pool-size") : ObjectDbStorage.DEFAULT_POOL_SIZE);
+            case "mvstore":
+                String file = config.getString("file");
+                return new MVStoreStorage(shard < 0 ? file : ShardedStorage.shardName(file, shard));
+            case "memory":
+                return new MemoryStorage();
+            default:
+                throw new IllegalArgumentException("Unknown database engine: " + config.getString("engine"));
+        }
+    }
+    
     public Database getDatabase()
     {
         return database;
@@ -200,6 +248,11 @@ public class GiveawayBot
         return manager;
     }
     
+    public BoundedExecutor getDownloads()
+    {
+        return downloads;
+    }
+    
     public InteractionsClient getInteractionsClient()
     {
         return interClient;
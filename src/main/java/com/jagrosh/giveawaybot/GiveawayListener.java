@@ -165,6 +165,12 @@ public class GiveawayListener implements InteractionsListener
                                     + "\nUptime   : " + FormatUtil.secondsToTime(uptime).replace("*", "")
                                     + "\nMemory   : " + used + "mb / " + total + "mb"
                                     + "\nGiveaways: " + bot.getDatabase().countAllGiveaways()
+                                    + "\nCache    : " + bot.getDatabase().getGiveawayCacheStats()
+                                    + "\nSettings : " + bot.getDatabase().getSettingsCacheStats()
+                                    + "\nWrites   : " + bot.getDatabase().getWriterStats()
+                                    + "\nState    : " + bot.getDatabase().getStateStats()
+                                    + "\nEndings  : " + bot.getGiveawayManager().getEndingStats()
+                                    + "\nDispatch : " + bot.getGiveawayManager().getDispatchStats()
                                     + "\nAvg Req  : " + (interaction.getClient().getMetrics().getOrDefault("TotalTime", 0L) / interaction.getClient().getMetrics().getOrDefault("TotalRequests", 1L) * 1e-9)
                                     + "\nReq/Sec  : " + (interaction.getClient().getMetrics().getOrDefault("TotalRequests", 0L) / uptime)
                                     + "\nMetrics  : " + interaction.getClient().getMetrics()
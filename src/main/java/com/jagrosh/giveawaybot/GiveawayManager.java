@@ -19,13 +19,18 @@ import com.jagrosh.giveawaybot.data.CachedUser;
 import com.jagrosh.giveawaybot.data.Database;
 import com.jagrosh.giveawaybot.data.Giveaway;
 import com.jagrosh.giveawaybot.data.GuildSettings;
+import com.jagrosh.giveawaybot.entities.CompactSummary;
 import com.jagrosh.giveawaybot.entities.EmojiParser;
 import com.jagrosh.giveawaybot.entities.FileUploader;
 import com.jagrosh.giveawaybot.entities.LocalizedMessage;
 import com.jagrosh.giveawaybot.entities.PremiumLevel;
+import com.jagrosh.giveawaybot.entities.SummaryWriter;
+import com.jagrosh.giveawaybot.util.BoundedCache;
+import com.jagrosh.giveawaybot.util.BoundedExecutor;
 import com.jagrosh.giveawaybot.util.FormatUtil;
 import com.jagrosh.giveawaybot.util.GiveawayUtil;
 import com.jagrosh.giveawaybot.util.OtherUtil;
+import com.jagrosh.giveawaybot.util.TimingWheel;
 import com.jagrosh.interactions.components.ActionRowComponent;
 import com.jagrosh.interactions.components.ButtonComponent;
 import com.jagrosh.interactions.components.PartialEmoji;
@@ -34,15 +39,23 @@ import com.jagrosh.interactions.receive.Interaction;
 import com.jagrosh.interactions.requests.RestClient;
 import com.jagrosh.interactions.requests.RestClient.RestResponse;
 import com.jagrosh.interactions.requests.Route;
-import com.jagrosh.interactions.util.JsonUtil;
 import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.function.Supplier;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,25 +71,70 @@ public class GiveawayManager
     private final static int MINIMUM_SECONDS = 10,
                              MAX_PRIZE_LENGTH = 250,
                              MAX_DESCR_LENGTH = 1000,
-                             FAILURE_COOLDOWN_TIME = 30;
+                             FAILURE_COOLDOWN_TIME = 30,
+                             FAILURE_CACHE_SIZE = 10000,
+                             RECONCILE_MINUTES = 5,
+                             ENDING_RETRY_SECONDS = 5,
+                             DEFAULT_ENDING_THREADS = 16, DEFAULT_ENDING_QUEUE = 1000, DEFAULT_ENDING_TIMEOUT = 60, // seconds
+                             DEFAULT_ENDING_REQUESTS = 20;
     private final static Color ENDED_COLOR = new Color(0x2F3136);
     private final static Permission[] REQUIRED_PERMS = { Permission.SEND_MESSAGES, Permission.VIEW_CHANNEL, 
         Permission.READ_MESSAGE_HISTORY, Permission.EMBED_LINKS };
     
     private final Logger log = LoggerFactory.getLogger(GiveawayManager.class);
     private final ScheduledExecutorService schedule = Executors.newSingleThreadScheduledExecutor();
-    private final ExecutorService pool = Executors.newCachedThreadPool();
-    private final Map<Long,Instant> latestFailure = new HashMap<>();
+    private final BoundedExecutor pool;
+    // later stages of an ending also run on the pool, but in place if its queue is full,
+    // since the giveaway has been removed by then and must not be dropped
+    private final Executor stages;
+    private final BoundedCache<Long,Instant> latestFailure = new BoundedCache<>(FAILURE_CACHE_SIZE, 0, TimeUnit.SECONDS);
+    private final TimingWheel endings = new TimingWheel(Instant.now().getEpochSecond());
+    private final Set<Long> ending = ConcurrentHashMap.newKeySet();
     private final Database database;
     private final RestClient rest;
+    private final RestDispatcher<RestResponse> dispatcher;
+    private final MessageSender messages;
     private final FileUploader uploader;
     private final EmojiParser emojis;
     private final long clientId;
+    private final int endingTimeout; // seconds
+    private final CompactSummary.Compression summaryCompression; // null for json summaries
     
     public GiveawayManager(Database database, RestClient rest, FileUploader uploader, EmojiParser emojis, long clientId)
     {
+        this(database, rest, uploader, emojis, clientId, DEFAULT_ENDING_THREADS, DEFAULT_ENDING_QUEUE, DEFAULT_ENDING_TIMEOUT, DEFAULT_ENDING_REQUESTS, null);
+    }
+    
+    public GiveawayManager(Database database, RestClient rest, FileUploader uploader, EmojiParser emojis, long clientId, 
+            int endingThreads, int endingQueue, int endingTimeout, int endingRequests, CompactSummary.Compression summaryCompression)
+    {
+        this(database, rest, uploader, emojis, clientId, endingThreads, endingQueue, endingTimeout, summaryCompression, 
+                new RestDispatcher<>(endingRequests, RestDispatcher.RateLimit::of), null);
+    }
+    
+    // for tests, with the messages of endings sent to the given sender instead of Discord
+    GiveawayManager(Database database, FileUploader uploader, EmojiParser emojis, int endingTimeout, MessageSender messages)
+    {
+        this(database, null, uploader, emojis, 0L, DEFAULT_ENDING_THREADS, DEFAULT_ENDING_QUEUE, endingTimeout, null, 
+                new RestDispatcher<>(DEFAULT_ENDING_REQUESTS, RestDispatcher.RateLimit::of), messages);
+    }
+    
+    private GiveawayManager(Database database, RestClient rest, FileUploader uploader, EmojiParser emojis, long clientId, 
+            int endingThreads, int endingQueue, int endingTimeout, CompactSummary.Compression summaryCompression, 
+            RestDispatcher<RestResponse> dispatcher, MessageSender messages)
+    {
+        this.summaryCompression = summaryCompression;
+        this.pool = new BoundedExecutor("giveaway-ending", endingThreads, endingQueue, endingTimeout, TimeUnit.SECONDS);
+        this.stages = task -> 
+        {
+            if(!pool.submit(task))
+                task.run();
+        };
+        this.endingTimeout = endingTimeout;
         this.database = database;
         this.rest = rest;
+        this.dispatcher = dispatcher;
+        this.messages = messages == null ? this::dispatch : messages;
         this.uploader = uploader;
         this.clientId = clientId;
         this.emojis = emojis;
@@ -84,26 +142,56 @@ public class GiveawayManager
     
     public void start()
     {
-        schedule.scheduleWithFixedDelay(() -> 
+        // giveaways are ended from the timing wheel, so the table is only read once here
+        Map<Long, Long> endTimes = database.getGiveawayEndTimes();
+        endTimes.forEach((id, endTime) -> endings.schedule(id, endTime));
+        log.info(String.format("Scheduled %d giveaways to end", endTimes.size()));
+        
+        // tick at the start of every second
+        schedule.scheduleAtFixedRate(() -> 
         {
             try
             {
-                // end giveaways that have run out of time
-                database.getGiveawaysEndingBefore(Instant.now().plusMillis(500))
-                        .stream().parallel()
-                        .forEach(giveaway -> endGiveaway(giveaway));
+                for(long id: endings.advance(Instant.now().getEpochSecond()))
+                    queueEnding(id);
             }
             catch(Exception ex)
             {
                 log.error("Exception in ending giveaways: ", ex);
             }
-        }, 0, 1, TimeUnit.SECONDS);
+        }, 1000 - System.currentTimeMillis() % 1000, 1000, TimeUnit.MILLISECONDS);
+        
+        // safety net for anything that missed the wheel
+        schedule.scheduleWithFixedDelay(() -> 
+        {
+            try
+            {
+                database.getGiveawaysEndingBefore(Instant.now()).stream()
+                        .filter(giveaway -> !endings.contains(giveaway.getMessageId()))
+                        .forEach(giveaway -> queueEnding(giveaway.getMessageId()));
+            }
+            catch(Exception ex)
+            {
+                log.error("Exception in reconciling giveaways: ", ex);
+            }
+        }, RECONCILE_MINUTES, RECONCILE_MINUTES, TimeUnit.MINUTES);
     }
     
     public void shutdown()
     {
         schedule.shutdown();
-        pool.shutdown();
+        pool.shutdown(DEFAULT_ENDING_TIMEOUT, TimeUnit.SECONDS);
+        dispatcher.shutdown();
+    }
+    
+    public String getEndingStats()
+    {
+        return pool.getStats();
+    }
+    
+    public String getDispatchStats()
+    {
+        return dispatcher.getStats();
     }
     
     public EmojiParser getEmojiManager()
@@ -118,7 +206,8 @@ public class GiveawayManager
     
     public boolean deleteGiveaway(Giveaway giveaway)
     {
-        database.removeGiveaway(giveaway.getMessageId());
+        endings.cancel(giveaway.getMessageId());
+        database.removeGiveaway(giveaway);
         try
         {
             RestResponse res = rest.request(Route.DELETE_MESSAGE.format(giveaway.getChannelId(), giveaway.getMessageId())).get();
@@ -130,32 +219,112 @@ public class GiveawayManager
         }
     }
     
-    public boolean endGiveaway(Giveaway giveaway)
+    /**
+     * Ends a giveaway
+     * 
+     * @param giveaway the giveaway to end
+     * @return completes with false if ending failed
+     */
+    public CompletableFuture<Boolean> endGiveaway(Giveaway giveaway)
     {
-        List<CachedUser> entries = database.getEntriesList(giveaway.getMessageId());
-        database.removeGiveaway(giveaway.getMessageId());
-        List<CachedUser> all = new ArrayList<>(entries);
-        List<CachedUser> winners = GiveawayUtil.selectWinners(all, giveaway.getWinners());
-        CachedUser host = database.getUser(giveaway.getUserId());
+        long giveawayId = giveaway.getMessageId();
+        if(!ending.add(giveawayId))
+            return CompletableFuture.completedFuture(false);
         try
         {
-            JSONObject summary = createGiveawaySummary(giveaway, host, entries, winners);
-            String url = uploader.uploadFile(summary.toString(), "giveaway_summary.json");
-            String summaryKey = url == null ? null : url.replaceAll(".*/(\\d+/\\d+)/.*", "$1");
-            rest.request(Route.PATCH_MESSAGE.format(giveaway.getChannelId(), giveaway.getMessageId()), renderGiveaway(giveaway, entries.size(), winners, summaryKey).toJson()).get();
-            rest.request(Route.POST_MESSAGE.format(giveaway.getChannelId()), renderWinnerMessage(giveaway, winners).toJson()).get();
+            // re-read, in case it was ended or deleted in the meantime
+            return end(giveawayId, () -> database.getGiveaway(giveawayId))
+                    .whenComplete((r, ex) -> ending.remove(giveawayId));
         }
-        catch(ExecutionException | InterruptedException ex)
+        catch(RejectedExecutionException ex)
         {
-            return false;
+            // still on the timing wheel, so it will end on time regardless
+            ending.remove(giveawayId);
+            return CompletableFuture.completedFuture(false);
         }
-        return true;
+    }
+    
+    private void queueEnding(long giveawayId)
+    {
+        if(!ending.add(giveawayId))
+            return;
+        try
+        {
+            // re-read, in case it was ended or deleted in the meantime
+            end(giveawayId, () -> database.getGiveaway(giveawayId))
+                    .whenComplete((r, ex) -> ending.remove(giveawayId));
+        }
+        catch(RejectedExecutionException ex)
+        {
+            // too many are waiting already, so try again shortly
+            ending.remove(giveawayId);
+            endings.schedule(giveawayId, Instant.now().getEpochSecond() + ENDING_RETRY_SECONDS);
+        }
+    }
+    
+    // hydrate -> select -> summarize and upload -> edit -> announce; hydrating, selecting
+    // and summarizing run on the pool, and the rest complete from the responses of the
+    // uploader and the message sender, which dispatches so that guilds take turns
+    private CompletableFuture<Boolean> end(long giveawayId, Supplier<Giveaway> giveaway)
+    {
+        CompletableFuture<Ending> selected = CompletableFuture.supplyAsync(() -> 
+        {
+            Giveaway g = giveaway.get();
+            Ending e = null;
+            if(g != null)
+            {
+                // removed right away, so it cannot be ended twice
+                long[] entryIds = database.getEntryIds(g.getMessageId());
+                database.removeGiveaway(g);
+                e = new Ending(g, entryIds, database.getUser(g.getUserId()));
+            }
+            // taken off the wheel only once it is gone, so an ending that is rejected still happens
+            endings.cancel(giveawayId);
+            return e;
+        }, pool).thenApplyAsync(e -> e == null ? null : e.selectWinners(database), stages);
+        
+        CompletableFuture<String> summaryKey = selected.thenComposeAsync(e -> e == null 
+                ? CompletableFuture.completedFuture(null)
+                : uploadSummary(e), stages)
+                .thenApply(url -> url == null ? null : url.replaceAll(summaryCompression == null ? ".*/(\\d+/\\d+)/.*" : ".*/(\\d+/\\d+/[^/?]+).*", "$1"));
+        CompletableFuture<Boolean> result = summaryKey.thenCompose(key -> 
+        {
+            Ending e = selected.join();
+            if(e == null)
+                return CompletableFuture.completedFuture(false);
+            // announced only once the giveaway shows as ended
+            return messages.send(e.giveaway, Route.PATCH_MESSAGE.format(e.giveaway.getChannelId(), e.giveaway.getMessageId()), 
+                            renderGiveaway(e.giveaway, e.entryIds.length, e.winners, key).toJson())
+                    .thenCompose(edited -> edited 
+                            ? messages.send(e.giveaway, Route.POST_MESSAGE.format(e.giveaway.getChannelId()), renderWinnerMessage(e.giveaway, e.winners).toJson())
+                            : CompletableFuture.completedFuture(false));
+        });
+        
+        ScheduledFuture<?> timeout = schedule.schedule(() -> result.completeExceptionally(new TimeoutException()), endingTimeout, TimeUnit.SECONDS);
+        return result.handle((ended, ex) -> 
+        {
+            timeout.cancel(false);
+            if(ex == null)
+                return ended;
+            log.error("Exception in ending giveaway " + giveawayId + ": ", ex);
+            return false;
+        });
+    }
+    
+    private CompletableFuture<Boolean> dispatch(Giveaway giveaway, Route.FormattedRoute route, JSONObject body)
+    {
+        return dispatcher.submit(giveaway.getGuildId(), giveaway.getChannelId(), () -> rest.request(route, body)).thenApply(res -> 
+        {
+            if(!res.isSuccess())
+                log.warn(String.format("Failed to update ended giveaway %d: %d %s", giveaway.getMessageId(), res.getStatus(), res.getBody()));
+            return res.isSuccess();
+        });
     }
     
     public void checkAvailability(Interaction interaction, PremiumLevel level) throws GiveawayException
     {
         // apply cooldown when giveaway creation fails
-        Instant latest = latestFailure.get(interaction.getGuildId());
+        Instant latest = latestFailure.getIfPresent(interaction.getGuildId());
         if(latest != null && latest.until(Instant.now(), ChronoUnit.SECONDS) < FAILURE_COOLDOWN_TIME)
             throw new GiveawayException(LocalizedMessage.ERROR_GIVEAWAY_COOLDOWN);
         
@@ -235,6 +404,7 @@ public class GiveawayManager
             }
             
             database.createGiveaway(giveaway);
+            endings.schedule(giveaway.getMessageId(), giveaway.getEndTime());
             return giveaway.getMessageId();
         }
         catch(InterruptedException | ExecutionException ex)
@@ -294,18 +464,75 @@ public class GiveawayManager
         return sb.toString().substring(2);
     }
     
-    private JSONObject createGiveawaySummary(Giveaway giveaway, CachedUser host, List<CachedUser> entries, List<CachedUser> winners)
+    // streams the summary to a temporary file, which is removed once it is uploaded
+    private CompletableFuture<String> uploadSummary(Ending e)
+    {
+        File file = null;
+        try
+        {
+            file = File.createTempFile("giveaway_summary", null);
+            if(summaryCompression == null)
+            {
+                try(Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)))
+                {
+                    SummaryWriter.write(out, e.giveaway, e.host, e.winners, users -> database.streamUsers(e.entryIds, users));
+                }
+            }
+            else
+            {
+                // sorted, so that the differences between ids are small
+                long[] sorted = e.entryIds.clone();
+                Arrays.sort(sorted);
+                try(OutputStream out = new FileOutputStream(file))
+                {
+                    CompactSummary.write(out, summaryCompression, e.giveaway, e.host, e.winners, users -> database.streamUsers(sorted, users));
+                }
+            }
+        }
+        catch(IOException | RuntimeException ex)
+        {
+            log.error("Failed to write summary of giveaway " + e.giveaway.getMessageId() + ": ", ex);
+            if(file != null)
+                file.delete();
+            return CompletableFuture.completedFuture(null);
+        }
+        File written = file;
+        // the giveaway still ends without a summary if the upload fails
+        return uploader.uploadFileAsync(written, summaryCompression == null ? "giveaway_summary.json" : CompactSummary.FILE_NAME).handle((url, ex) -> 
+        {
+            written.delete();
+            if(ex != null)
+                log.error("Failed to upload summary of giveaway " + e.giveaway.getMessageId() + ": ", ex);
+            return ex == null ? url : null;
+        });
+    }
+    
+    private static class Ending
+    {
+        private final Giveaway giveaway;
+        private final long[] entryIds;
+        private final CachedUser host;
+        private List<CachedUser> winners;
+        
+        private Ending(Giveaway giveaway, long[] entryIds, CachedUser host)
+        {
+            this.giveaway = giveaway;
+            this.entryIds = entryIds;
+            this.host = host;
+        }
+        
+        private Ending selectWinners(Database database)
+        {
+            // entrants with no stored user are passed over, not counted as winners
+            winners = GiveawayUtil.selectWinners(entryIds, giveaway.getWinners(), database::getUsers);
+            return this;
+        }
+    }
+    
+    // sends a message request for an ended giveaway, completing with whether it succeeded
+    interface MessageSender
     {
-        return new JSONObject()
-                .put("giveaway", new JSONObject()
-                    .put("id", Long.toString(giveaway.getMessageId()))
-                    .put("prize", giveaway.getPrize())
-                    .put("desc", giveaway.getDescription())
-                    .put("num_winners", giveaway.getWinners())
-                    .put("host", host.toJson())
-                    .put("end", giveaway.getEndTime()))
-                .put("winners", JsonUtil.buildArray(winners))
-                .put("entries", JsonUtil.buildArray(entries));
+        CompletableFuture<Boolean> send(Giveaway giveaway, Route.FormattedRoute route, JSONObject body);
     }
     
     private ButtonComponent createEntryButton(EmojiParser.ParsedEntryButton pe)
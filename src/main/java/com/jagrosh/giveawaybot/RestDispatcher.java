@@ -0,0 +1,359 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import com.jagrosh.interactions.requests.RestClient.RestResponse;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.json.JSONObject;
+
+/**
+ * Sends message requests to Discord fairly and within rate limits. Discord
+ * limits message routes per channel, so requests are queued per channel and a
+ * channel has at most one request in flight. Channels that are ready take turns
+ * within their guild, and guilds take turns with each other, so one guild ending
+ * many giveaways at once does not hold up the rest. A rate limited response
+ * pauses its channel, or everything if the limit is global, for as long as it
+ * asks, and the request is then sent again.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ * @param <T> the response to a request
+ */
+public class RestDispatcher<T>
+{
+    private final static int MAX_RETRIES = 3;
+
+    private final int maxInFlight;
+    private final Function<T, RateLimit> limits;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final LongAdder sent = new LongAdder(), rateLimited = new LongAdder();
+
+    // guarded by this
+    private final Map<Long, Bucket<T>> buckets = new HashMap<>();
+    private final Map<Long, GuildQueue<T>> guilds = new HashMap<>();
+    private final Deque<GuildQueue<T>> ring = new ArrayDeque<>();
+    private long globalReadyAt = 0L;
+    private int inFlight = 0, queued = 0;
+    private boolean closed = false;
+
+    /**
+     * @param maxInFlight the most requests waiting on a response at once
+     * @param limits reads the rate limit from a response, or null if it was not limited
+     */
+    public RestDispatcher(int maxInFlight, Function<T, RateLimit> limits)
+    {
+        this.maxInFlight = maxInFlight;
+        this.limits = limits;
+    }
+
+    /**
+     * Queues a request to a channel's message route
+     *
+     * @param guildId the guild of the channel
+     * @param channelId the channel, whose rate limit the route shares
+     * @param call sends the request, and may be called again if it is rate limited
+     * @return completes with the response once it is not rate limited, or with a
+     * {@link RateLimitedException} if it still is after a few retries
+     */
+    public CompletableFuture<T> submit(long guildId, long channelId, Supplier<CompletableFuture<T>> call)
+    {
+        Request<T> r = new Request<>(call);
+        synchronized(this)
+        {
+            if(closed)
+            {
+                r.future.completeExceptionally(new IllegalStateException("Dispatcher is shut down"));
+                return r.future;
+            }
+            Bucket<T> b = buckets.computeIfAbsent(channelId, id -> new Bucket<>(id, guildId));
+            b.queue.add(r);
+            queued++;
+            if(b.state == State.IDLE)
+                ready(b);
+        }
+        pump();
+        return r.future;
+    }
+
+    public synchronized String getStats()
+    {
+        return String.format("%d queued, %d in flight, %d channels, %d sent, %d rate limited",
+                queued, inFlight, buckets.size(), sent.sum(), rateLimited.sum());
+    }
+
+    synchronized int countChannels()
+    {
+        return buckets.size();
+    }
+
+    /**
+     * Stops sending, and fails every request still queued; those in flight
+     * complete with their responses
+     */
+    public void shutdown()
+    {
+        List<Request<T>> dropped = new ArrayList<>();
+        synchronized(this)
+        {
+            closed = true;
+            buckets.values().forEach(b -> dropped.addAll(b.queue));
+            buckets.values().forEach(b -> b.queue.clear());
+            guilds.clear();
+            ring.clear();
+            queued = 0;
+        }
+        timer.shutdownNow();
+        dropped.forEach(r -> r.future.completeExceptionally(new IllegalStateException("Dispatcher is shut down")));
+    }
+
+    // guarded by this; the bucket must be idle and have requests queued
+    private void ready(Bucket<T> b)
+    {
+        long wait = b.readyAt - System.currentTimeMillis();
+        if(wait > 0)
+        {
+            b.state = State.WAITING;
+            timer.schedule(() ->
+            {
+                synchronized(this)
+                {
+                    if(closed)
+                        return;
+                    b.state = State.IDLE;
+                    ready(b);
+                }
+                pump();
+            }, wait, TimeUnit.MILLISECONDS);
+            return;
+        }
+        b.state = State.READY;
+        GuildQueue<T> g = guilds.computeIfAbsent(b.guildId, GuildQueue::new);
+        g.ready.add(b);
+        if(g.ready.size() == 1)
+            ring.add(g);
+    }
+
+    // guarded by this; forgets an idle channel, once any rate limit on it is over
+    private void forget(Bucket<T> b)
+    {
+        long wait = b.readyAt - System.currentTimeMillis();
+        if(wait <= 0)
+        {
+            buckets.remove(b.channelId);
+            return;
+        }
+        timer.schedule(() ->
+        {
+            synchronized(this)
+            {
+                if(b.state == State.IDLE && b.queue.isEmpty())
+                    buckets.remove(b.channelId, b);
+            }
+        }, wait, TimeUnit.MILLISECONDS);
+    }
+
+    // sends from ready channels, one guild at a time in turn, while there is room
+    private void pump()
+    {
+        List<Bucket<T>> sending = new ArrayList<>();
+        List<Request<T>> requests = new ArrayList<>();
+        synchronized(this)
+        {
+            if(closed || globalReadyAt > System.currentTimeMillis())
+                return; // pumped again when the global limit is over
+            while(inFlight < maxInFlight && !ring.isEmpty())
+            {
+                GuildQueue<T> g = ring.poll();
+                Bucket<T> b = g.ready.poll();
+                if(g.ready.isEmpty())
+                    guilds.remove(g.guildId);
+                else
+                    ring.add(g);
+                b.state = State.BUSY;
+                sending.add(b);
+                requests.add(b.queue.poll());
+                queued--;
+                inFlight++;
+            }
+        }
+        for(int i = 0; i < sending.size(); i++)
+            send(sending.get(i), requests.get(i));
+    }
+
+    private void send(Bucket<T> b, Request<T> r)
+    {
+        CompletableFuture<T> response;
+        try
+        {
+            response = r.call.get();
+        }
+        catch(RuntimeException ex)
+        {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(ex);
+        }
+        response.whenComplete((res, ex) -> done(b, r, res, ex));
+    }
+
+    private void done(Bucket<T> b, Request<T> r, T res, Throwable ex)
+    {
+        RateLimit limit = ex == null ? limits.apply(res) : null;
+        boolean retry;
+        synchronized(this)
+        {
+            inFlight--;
+            retry = limit != null && !closed && r.attempts++ < MAX_RETRIES;
+            long now = System.currentTimeMillis();
+            if(limit != null)
+            {
+                rateLimited.increment();
+                b.readyAt = now + limit.retryAfter;
+                if(limit.global && now + limit.retryAfter > globalReadyAt && !closed)
+                {
+                    globalReadyAt = now + limit.retryAfter;
+                    timer.schedule(this::pump, limit.retryAfter, TimeUnit.MILLISECONDS);
+                }
+            }
+            if(retry)
+            {
+                b.queue.addFirst(r);
+                queued++;
+            }
+            b.state = State.IDLE;
+            if(closed)
+                buckets.remove(b.channelId);
+            else if(!b.queue.isEmpty())
+                ready(b);
+            else
+                forget(b);
+        }
+        if(!retry)
+        {
+            sent.increment();
+            if(ex != null)
+                r.future.completeExceptionally(ex);
+            else if(limit != null)
+                r.future.completeExceptionally(new RateLimitedException(limit));
+            else
+                r.future.complete(res);
+        }
+        pump();
+    }
+
+    /**
+     * How long a rate limited request must wait, and whether the wait applies to
+     * every request or only those of its channel
+     */
+    public static class RateLimit
+    {
+        private final static long DEFAULT_RETRY_AFTER = 1000; // milliseconds
+
+        private final long retryAfter; // milliseconds
+        private final boolean global;
+
+        public RateLimit(long retryAfter, boolean global)
+        {
+            this.retryAfter = retryAfter;
+            this.global = global;
+        }
+
+        /**
+         * Reads the rate limit of a Discord response from its body, since the
+         * rest client does not expose its headers
+         *
+         * @param res the response
+         * @return the rate limit, or null if the response was not rate limited
+         */
+        public static RateLimit of(RestResponse res)
+        {
+            if(res.getStatus() != 429)
+                return null;
+            JSONObject body = res.getBody();
+            return body == null
+                    ? new RateLimit(DEFAULT_RETRY_AFTER, false)
+                    : new RateLimit((long) (body.optDouble("retry_after", DEFAULT_RETRY_AFTER / 1000.0) * 1000), body.optBoolean("global", false));
+        }
+
+        public long getRetryAfter()
+        {
+            return retryAfter;
+        }
+
+        public boolean isGlobal()
+        {
+            return global;
+        }
+    }
+
+    public static class RateLimitedException extends RuntimeException
+    {
+        private RateLimitedException(RateLimit limit)
+        {
+            super(String.format("Still rate limited after %d retries; retry after %dms%s", MAX_RETRIES, limit.retryAfter, limit.global ? " (global)" : ""));
+        }
+    }
+
+    private enum State
+    {
+        IDLE,    // nothing queued, or being put back after a response
+        WAITING, // rate limited until readyAt
+        READY,   // in its guild's turn
+        BUSY     // a request is in flight
+    }
+
+    private static class Bucket<T>
+    {
+        private final long channelId, guildId;
+        private final Deque<Request<T>> queue = new ArrayDeque<>();
+        private State state = State.IDLE;
+        private long readyAt = 0L;
+
+        private Bucket(long channelId, long guildId)
+        {
+            this.channelId = channelId;
+            this.guildId = guildId;
+        }
+    }
+
+    private static class GuildQueue<T>
+    {
+        private final long guildId;
+        private final Deque<Bucket<T>> ready = new ArrayDeque<>();
+
+        private GuildQueue(long guildId)
+        {
+            this.guildId = guildId;
+        }
+    }
+
+    private static class Request<T>
+    {
+        private final Supplier<CompletableFuture<T>> call;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private int attempts = 0;
+
+        private Request(Supplier<CompletableFuture<T>> call)
+        {
+            this.call = call;
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.jagrosh.giveawaybot.commands;
 
+import com.jagrosh.giveawaybot.Constants;
 import com.jagrosh.giveawaybot.GiveawayBot;
 import com.jagrosh.giveawaybot.GiveawayException;
 import com.jagrosh.giveawaybot.data.Giveaway;
@@ -22,8 +23,12 @@ import com.jagrosh.giveawaybot.entities.LocalizedMessage;
 import com.jagrosh.interactions.command.ApplicationCommand;
 import com.jagrosh.interactions.command.ApplicationCommandOption;
 import com.jagrosh.interactions.entities.Permission;
+import com.jagrosh.interactions.entities.SentMessage;
 import com.jagrosh.interactions.receive.Interaction;
+import com.jagrosh.interactions.responses.DeferredCallback;
 import com.jagrosh.interactions.responses.InteractionResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
@@ -31,6 +36,8 @@ import com.jagrosh.interactions.responses.InteractionResponse;
  */
 public class EndCmd extends GBCommand
 {
+    private final Logger log = LoggerFactory.getLogger(EndCmd.class);
+    
     public EndCmd(GiveawayBot bot)
     {
         super(bot);
@@ -63,11 +70,22 @@ public class EndCmd extends GBCommand
         if(g == null || g.getGuildId() != interaction.getGuildId())
             return respondError(LocalizedMessage.ERROR_GIVEAWAY_NOT_FOUND.getLocalizedMessage(interaction.getEffectiveLocale(), id+""));
         
-        boolean success = bot.getGiveawayManager().endGiveaway(g);
-        
-        if(success)
-            return respondSuccess(LocalizedMessage.SUCCESS_GIVEAWAY_ENDED.getLocalizedMessage(interaction.getEffectiveLocale(), id+""));
-        else
-            return respondError(LocalizedMessage.ERROR_GENERIC_ENDING.getLocalizedMessage(interaction.getEffectiveLocale()));
+        // ending can take a while, so the response is edited once it is done
+        bot.getGiveawayManager().endGiveaway(g)
+                .exceptionally(ex -> 
+                {
+                    log.error("Failed to end giveaway: ", ex);
+                    return false;
+                })
+                .thenApply(success -> success 
+                        ? Constants.YAY + " " + LocalizedMessage.SUCCESS_GIVEAWAY_ENDED.getLocalizedMessage(interaction.getEffectiveLocale(), g.getMessageId()+"")
+                        : Constants.ERROR + " " + LocalizedMessage.ERROR_GENERIC_ENDING.getLocalizedMessage(interaction.getEffectiveLocale()))
+                .thenCompose(content -> editResponse(interaction, new SentMessage.Builder().setContent(content).build()))
+                .exceptionally(ex -> 
+                {
+                    log.error("Failed to edit end response: ", ex);
+                    return null;
+                });
+        return new DeferredCallback(true);
     }
 }
@@ -25,12 +25,14 @@ import com.jagrosh.interactions.command.Command;
 import com.jagrosh.interactions.entities.Guild;
 import com.jagrosh.interactions.entities.SentMessage;
 import com.jagrosh.interactions.receive.Interaction;
+import com.jagrosh.interactions.requests.RestClient.RestResponse;
 import com.jagrosh.interactions.requests.Route;
 import com.jagrosh.interactions.responses.InteractionResponse;
 import com.jagrosh.interactions.responses.MessageCallback;
 import java.time.Instant;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +43,8 @@ import org.slf4j.LoggerFactory;
  */
 public abstract class GBCommand implements Command
 {
+    private final static String EDIT_RESPONSE = "https://discord.com/api/v10/webhooks/%d/%s/messages/@original";
+    
     private final Logger log = LoggerFactory.getLogger(GBCommand.class);
     private final Set<Long> currentlyUpdating = new HashSet<>();
     protected final GiveawayBot bot;
@@ -103,6 +107,20 @@ public abstract class GBCommand implements Command
     
     protected abstract InteractionResponse gbExecute(Interaction interaction) throws GiveawayException;
     
+    /**
+     * Replaces the response of an interaction that was answered with a
+     * deferred callback
+     * 
+     * @param interaction the interaction
+     * @param message the new response
+     * @return the request's result
+     */
+    protected CompletableFuture<RestResponse> editResponse(Interaction interaction, SentMessage message)
+    {
+        return bot.getRestClient().simpleRequest(String.format(EDIT_RESPONSE, interaction.getApplicationId(), interaction.getToken()), 
+                Route.Type.PATCH, message.toJson().toString());
+    }
+    
     public static MessageCallback respondSuccess(String content)
     {
         return respond(Constants.YAY + " " + content);
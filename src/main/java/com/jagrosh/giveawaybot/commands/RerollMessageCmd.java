@@ -15,8 +15,10 @@
  */
 package com.jagrosh.giveawaybot.commands;
 
+import com.jagrosh.giveawaybot.Constants;
 import com.jagrosh.giveawaybot.GiveawayBot;
 import com.jagrosh.giveawaybot.GiveawayException;
+import com.jagrosh.giveawaybot.entities.CompactSummary;
 import com.jagrosh.giveawaybot.entities.LocalizedMessage;
 import com.jagrosh.giveawaybot.util.GiveawayUtil;
 import com.jagrosh.interactions.command.ApplicationCommand;
@@ -27,11 +29,21 @@ import com.jagrosh.interactions.entities.Permission;
 import com.jagrosh.interactions.entities.ReceivedMessage;
 import com.jagrosh.interactions.entities.SentMessage;
 import com.jagrosh.interactions.receive.Interaction;
-import com.jagrosh.interactions.requests.RestClient;
+import com.jagrosh.interactions.responses.DeferredCallback;
 import com.jagrosh.interactions.responses.InteractionResponse;
 import com.jagrosh.interactions.responses.MessageCallback;
 import com.jagrosh.interactions.util.JsonUtil;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.LongStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
@@ -41,6 +53,9 @@ public class RerollMessageCmd extends GBCommand
 {
     private final static String JUMP_LINK = "https://discord.com/channels/%d/%d/%d";
     private final static String KEY = "#giveaway=";
+    private final static String ATTACHMENTS = "https://cdn.discordapp.com/attachments/";
+    private final static int DOWNLOAD_TIMEOUT = 10000; // milliseconds
+    private final Logger log = LoggerFactory.getLogger(RerollMessageCmd.class);
     
     public RerollMessageCmd(GiveawayBot bot)
     {
@@ -84,29 +99,91 @@ public class RerollMessageCmd extends GBCommand
             return GBCommand.respondError(LocalizedMessage.ERROR_INVALID_MESSAGE.getLocalizedMessage(interaction.getEffectiveLocale()));
         }
         
-        // reroll
-        //String url = "https://cdn.discordapp.com/attachments/" + summaryKey + "/giveaway_summary.json";
-        String url = "https://summary-api.giveawaybot.party/?giveaway=" + summaryKey;
+        // reroll once the entries are in, editing the deferred response
+        CompletableFuture<long[]> entries;
         try
         {
-            RestClient.RestResponse res = bot.getRestClient().simpleRequest(url).get();
-            List<Long> entries = JsonUtil.optArray(res.getBody(), "entries", user -> user.getLong("id"));
-            List<Long> winner = GiveawayUtil.selectWinners(entries, count);
-            if(winner.isEmpty())
-                return GBCommand.respondError(LocalizedMessage.ERROR_GENERIC_REROLL.getLocalizedMessage(interaction.getEffectiveLocale()));
-            StringBuilder winStr = new StringBuilder();
-            winner.forEach(w -> winStr.append(", <@").append(w).append(">"));
-            return new MessageCallback(new SentMessage.Builder()
-                    .setAllowedMentions(new AllowedMentions(AllowedMentions.ParseType.USERS))
-                    .setReferenceMessage(msg.getIdLong())
-                    .setContent(LocalizedMessage.SUCCESS_GIVEAWAY_REROLL.getLocalizedMessage(interaction.getEffectiveLocale(), "<@" + interaction.getUser().getIdLong() + ">", winStr.substring(2)) 
-                            + " [\u2197](" + String.format(JUMP_LINK, interaction.getGuildId(), interaction.getChannelId(), msg.getIdLong()) + ")") // ↗
-                    .build());
-        } 
-        catch(Exception ex)
+            entries = getEntries(summaryKey);
+        }
+        catch(RejectedExecutionException ex)
         {
-            ex.printStackTrace();
             return GBCommand.respondError(LocalizedMessage.ERROR_GENERIC_REROLL.getLocalizedMessage(interaction.getEffectiveLocale()));
         }
+        entries.thenApply(e -> rerollMessage(interaction, msg, e, count))
+                .exceptionally(ex -> 
+                {
+                    log.error("Failed to reroll giveaway: ", ex);
+                    return new SentMessage.Builder()
+                            .setContent(Constants.ERROR + " " + LocalizedMessage.ERROR_GENERIC_REROLL.getLocalizedMessage(interaction.getEffectiveLocale()))
+                            .build();
+                })
+                .thenCompose(m -> editResponse(interaction, m))
+                .exceptionally(ex -> 
+                {
+                    log.error("Failed to edit reroll response: ", ex);
+                    return null;
+                });
+        return new DeferredCallback(false);
+    }
+    
+    private SentMessage rerollMessage(Interaction interaction, ReceivedMessage msg, long[] entries, int count)
+    {
+        long[] winner = GiveawayUtil.selectWinners(entries, count);
+        if(winner.length == 0)
+            return new SentMessage.Builder()
+                    .setContent(Constants.ERROR + " " + LocalizedMessage.ERROR_GENERIC_REROLL.getLocalizedMessage(interaction.getEffectiveLocale()))
+                    .build();
+        StringBuilder winStr = new StringBuilder();
+        for(long w: winner)
+            winStr.append(", <@").append(w).append(">");
+        return new SentMessage.Builder()
+                .setAllowedMentions(new AllowedMentions(AllowedMentions.ParseType.USERS))
+                .setReferenceMessage(msg.getIdLong())
+                .setContent(LocalizedMessage.SUCCESS_GIVEAWAY_REROLL.getLocalizedMessage(interaction.getEffectiveLocale(), "<@" + interaction.getUser().getIdLong() + ">", winStr.substring(2)) 
+                        + " [\u2197](" + String.format(JUMP_LINK, interaction.getGuildId(), interaction.getChannelId(), msg.getIdLong()) + ")") // ↗
+                .build();
+    }
+    
+    private CompletableFuture<long[]> getEntries(String summaryKey)
+    {
+        if(!summaryKey.endsWith("/" + CompactSummary.FILE_NAME))
+        {
+            //String url = "https://cdn.discordapp.com/attachments/" + summaryKey + "/giveaway_summary.json";
+            String url = "https://summary-api.giveawaybot.party/?giveaway=" + summaryKey;
+            return bot.getRestClient().simpleRequest(url).thenApply(res -> 
+            {
+                List<Long> entries = JsonUtil.optArray(res.getBody(), "entries", user -> user.getLong("id"));
+                return entries.stream().mapToLong(Long::longValue).toArray();
+            });
+        }
+        // summaries are downloaded off the interaction thread, a few at a time
+        return CompletableFuture.supplyAsync(() -> download(summaryKey), bot.getDownloads());
+    }
+    
+    // compact summaries are read as they download, keeping only the ids
+    private static long[] download(String summaryKey)
+    {
+        HttpURLConnection conn = null;
+        try
+        {
+            conn = (HttpURLConnection) new URL(ATTACHMENTS + summaryKey).openConnection();
+            conn.setConnectTimeout(DOWNLOAD_TIMEOUT);
+            conn.setReadTimeout(DOWNLOAD_TIMEOUT);
+            try(InputStream in = conn.getInputStream())
+            {
+                LongStream.Builder entries = LongStream.builder();
+                new CompactSummary.Reader(in).forEachEntry(u -> entries.add(u.getId()));
+                return entries.build().toArray();
+            }
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        finally
+        {
+            if(conn != null)
+                conn.disconnect();
+        }
     }
 }
@@ -17,6 +17,8 @@ package com.jagrosh.giveawaybot.data;
 
 import com.jagrosh.giveawaybot.entities.PremiumLevel;
 import com.jagrosh.interactions.interfaces.IJson;
+import java.time.Instant;
+import javax.jdo.annotations.Index;
 import javax.persistence.*;
 import org.json.JSONObject;
 
@@ -26,7 +28,15 @@ import org.json.JSONObject;
  */
 @Entity
 @Table(name = "USERS")
-@NamedQuery(name = "CachedUser.findAllWithPremium", query = "SELECT u FROM CachedUser u WHERE u.premiumLevel > 0")
+@NamedQueries({
+    @NamedQuery(name = "CachedUser.findAllWithPremium", query = "SELECT u FROM CachedUser u WHERE u.premiumLevel > 0"),
+    @NamedQuery(name = "CachedUser.findByIds", query = "SELECT u FROM CachedUser u WHERE u.id IN :ids"),
+    @NamedQuery(name = "CachedUser.findStale", query = "SELECT u FROM CachedUser u WHERE u.lastSeen > 0 AND u.lastSeen < :seenBefore AND u.premiumLevel = 0"),
+    @NamedQuery(name = "CachedUser.findStaleIds", query = "SELECT u.id FROM CachedUser u WHERE u.id IN :ids AND u.lastSeen > 0 AND u.lastSeen < :seenBefore AND u.premiumLevel = 0"),
+    @NamedQuery(name = "CachedUser.deleteIds", query = "DELETE FROM CachedUser u WHERE u.id IN :ids"),
+    @NamedQuery(name = "CachedUser.markUnseen", query = "UPDATE CachedUser u SET u.lastSeen = :now WHERE u.lastSeen = 0")
+})
+@Index(members = {"lastSeen"})
 public class CachedUser implements IJson
 {
     @Id
@@ -45,6 +55,9 @@ public class CachedUser implements IJson
     @Column(name = "PREMIUM")
     private int premiumLevel;
     
+    @Column(name = "LAST_SEEN")
+    private long lastSeen;
+    
     public CachedUser()
     {
         this.premiumLevel = 0;
@@ -100,6 +113,16 @@ public class CachedUser implements IJson
         this.premiumLevel = premiumLevel.level;
     }
 
+    public Instant getLastSeen()
+    {
+        return Instant.ofEpochSecond(lastSeen);
+    }
+    
+    public void setLastSeen(Instant lastSeen)
+    {
+        this.lastSeen = lastSeen.getEpochSecond();
+    }
+
     @Override
     public JSONObject toJson()
     {
@@ -16,20 +16,32 @@
 package com.jagrosh.giveawaybot.data;
 
 import com.jagrosh.giveawaybot.entities.PremiumLevel;
-import com.jagrosh.giveawaybot.util.OtherUtil;
+import com.jagrosh.giveawaybot.util.BoundedCache;
 import com.jagrosh.interactions.entities.Guild;
 import com.jagrosh.interactions.entities.User;
 import com.jagrosh.interactions.entities.WebLocale;
 import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
-import javax.persistence.Persistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
@@ -37,266 +49,365 @@ import javax.persistence.Persistence;
  */
 public class Database
 {
-    private final EntityManagerFactory emf;
-    private final EntityManager em;
-    private final Map<Long, GiveawayEntries> cachedEntries = new HashMap<>();
-    private final Map<Long, Giveaway> cachedGiveawaysReadonly = new HashMap<>();
+    private final static int GIVEAWAY_CACHE_SIZE = 100000, MISSING_GIVEAWAY_TTL = 10, // seconds
+                             USER_FLUSH_INTERVAL = 5, // seconds
+                             SETTINGS_CACHE_SIZE = 100000,
+                             COMPACTION_INTERVAL = 60, // minutes
+                             COMPACTION_BATCH_SIZE = 500, COMPACTION_BATCHES = 20, // per run
+                             COMPACTION_PAUSE = 250; // milliseconds between batches
+    
+    private final Logger log = LoggerFactory.getLogger(Database.class);
+    private final Storage storage;
+    private final EntryJournal journal;
+    private final EntryRegistry entries;
+    private final UserDirectory users;
+    private final GiveawayCounters counters = new GiveawayCounters();
+    private final Map<Long, PremiumLevel> premiumUsers = new ConcurrentHashMap<>();
+    private final SettingsCache settings = new SettingsCache(SETTINGS_CACHE_SIZE);
+    private final BoundedCache<Long, Giveaway> cachedGiveaways = new BoundedCache<>(GIVEAWAY_CACHE_SIZE, MISSING_GIVEAWAY_TTL, TimeUnit.SECONDS);
     private final ScheduledExecutorService cacheCombiner = Executors.newSingleThreadScheduledExecutor();
+    private final MutationWriter writer;
+    
+    // writes hold the read lock, so that a snapshot sees either all or none of a write
+    private final Path snapshotFile;
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private final AtomicLong modifications = new AtomicLong();
+    private final Object stampLock = new Object();
+    private volatile long snapshotStamp = 0L; // stamp stored in the database, 0 if it has changed since
+    
+    private final AtomicLong compactedUsers = new AtomicLong(), compactedBytes = new AtomicLong();
+    private ScheduledExecutorService compactor;
     
     public Database(String host, String user, String pass)
     {
-        Map<String, String> properties = new HashMap<>();
-        properties.put("javax.persistence.jdbc.user", user);
-        properties.put("javax.persistence.jdbc.password", pass);
-        emf = Persistence.createEntityManagerFactory(host, properties);
-        em = emf.createEntityManager();
-        em.getMetamodel().managedType(CachedUser.class);
-        em.getMetamodel().managedType(Giveaway.class);
-        em.getMetamodel().managedType(GiveawayEntries.class);
-        em.getMetamodel().managedType(GuildSettings.class);
-        cacheCombiner.scheduleWithFixedDelay(() -> syncEntries(), 60, 60, TimeUnit.SECONDS);
+        this(new ObjectDbStorage(host, user, pass, ObjectDbStorage.DEFAULT_POOL_SIZE));
     }
     
-    public void shutdown()
+    public Database(Storage storage)
     {
-        cacheCombiner.shutdown();
-        syncEntries();
-        em.close();
-        emf.close();
+        this(storage, null);
     }
     
-    // guild settings
-    public GuildSettings getSettings(long guildId)
+    public Database(Storage storage, String journalDir)
+    {
+        this(storage, journalDir, null);
+    }
+    
+    public Database(Storage storage, String journalDir, String snapshotFile)
     {
-        GuildSettings gs = em.find(GuildSettings.class, guildId);
-        return gs == null ? new GuildSettings(guildId) : gs;
+        this(storage, journalDir, snapshotFile, MutationWriter.Durability.GROUP);
     }
     
-    public synchronized void setAutomaticGuildSettings(long guildId, Instant now, Guild guild)
+    public Database(Storage storage, String journalDir, String snapshotFile, MutationWriter.Durability durability)
     {
-        GuildSettings gs = em.find(GuildSettings.class, guildId);
-        em.getTransaction().begin();
-        if(gs == null)
+        this.storage = storage;
+        this.writer = new MutationWriter(storage, this::modify, durability);
+        this.snapshotFile = snapshotFile == null ? null : Paths.get(snapshotFile);
+        journal = journalDir == null ? null : new EntryJournal(journalDir);
+        entries = new EntryRegistry(storage, journal);
+        users = new UserDirectory(storage, () -> cacheCombiner.execute(this::flushUsers));
+        storage.scanGiveaways((messageId, guildId, channelId, endTime) -> counters.add(messageId, guildId, channelId));
+        if(!loadSnapshot())
+            storage.getPremiumUsers().forEach(u -> premiumUsers.put(u.getId(), u.getPremiumLevel()));
+        if(journal != null)
         {
-            gs = new GuildSettings();
-            gs.setGuildId(guildId);
-            gs.setLocale(WebLocale.UNKNOWN);
-            em.persist(gs);
+            // apply anything that was clicked but not yet synced before the last shutdown
+            int replayed = journal.replay((type, giveawayId, userId) -> 
+            {
+                if(getGiveaway(giveawayId) != null)
+                    entries.replay(type, giveawayId, userId);
+            });
+            log.info(String.format("Replayed %d entry events from the journal", replayed));
+            cacheCombiner.scheduleWithFixedDelay(() -> journal.force(), 1, 1, TimeUnit.SECONDS);
         }
-        gs.setLatestRetrieval(now);
-        if(guild != null)
+        cacheCombiner.scheduleWithFixedDelay(() -> 
         {
-            gs.setOwnerId(guild.getOwnerId());
-            if(guild.getPreferredLocale() != null && guild.getPreferredLocale() != WebLocale.UNKNOWN)
-                gs.setLocale(guild.getPreferredLocale());
-            /*if(gs.getLocale() == null || gs.getLocale() == WebLocale.UNKNOWN)
+            try
             {
-                gs.setLocale(guild.getPreferredLocale());
+                syncEntries();
             }
-            /*if(gs.getManagerRoleId() == 0L)
+            catch(Exception ex)
             {
-                GuildRole legacy = guild.getRoles().stream()
-                        .filter(r -> r.getName().equalsIgnoreCase("giveaways"))
-                        .findFirst().orElse(null);
-                if(legacy != null)
-                    gs.setManagerRoleId(legacy.getIdLong());
-            }*/
-        }
-        em.getTransaction().commit();
+                log.error("Exception in syncing entries: ", ex);
+                return;
+            }
+            try
+            {
+                // the sync made the last snapshot stale, so one is taken right after it
+                writeSnapshot();
+            }
+            catch(Exception ex)
+            {
+                log.error("Exception in writing snapshot: ", ex);
+            }
+        }, 60, 60, TimeUnit.SECONDS);
+        cacheCombiner.scheduleWithFixedDelay(this::flushUsers, USER_FLUSH_INTERVAL, USER_FLUSH_INTERVAL, TimeUnit.SECONDS);
     }
     
-    public synchronized void setGuildColor(long guildId, Color color)
+    public void shutdown()
     {
-        GuildSettings gs = em.find(GuildSettings.class, guildId);
-        em.getTransaction().begin();
-        if(gs == null)
+        cacheCombiner.shutdown();
+        synchronized(this)
         {
-            gs = new GuildSettings();
-            gs.setGuildId(guildId);
-            em.persist(gs);
+            if(compactor != null)
+                compactor.shutdownNow();
         }
-        gs.setColor(color);
-        em.getTransaction().commit();
+        writer.close();
+        syncEntries();
+        users.flush();
+        writeSnapshot();
+        if(journal != null)
+            journal.close();
+        storage.close();
     }
     
-    public synchronized void setGuildEmoji(long guildId, String emoji)
+    // guild settings
+    public GuildSettings getSettings(long guildId)
+    {
+        // guilds without settings share one read-only default
+        return settings.get(guildId, storage::getSettings);
+    }
+    
+    /**
+     * @return the size of every in-memory structure that grows with use
+     */
+    public String getStateStats()
+    {
+        return String.format("%d entry sets, %d profiles (%d pending), %d premium users, %d counted giveaways, %d users compacted (%d KiB)", 
+                entries.size(), users.getWrittenStats().size, users.getPendingCount(), premiumUsers.size(), counters.countAll(), 
+                compactedUsers.get(), compactedBytes.get() / 1024);
+    }
+    
+    public String getWriterStats()
+    {
+        return writer.getStats();
+    }
+    
+    public BoundedCache.Stats getSettingsCacheStats()
     {
-        GuildSettings gs = em.find(GuildSettings.class, guildId);
-        em.getTransaction().begin();
-        if(gs == null)
+        return settings.getStats();
+    }
+    
+    public void setAutomaticGuildSettings(long guildId, Instant now, Guild guild)
+    {
+        updateSettings(guildId, gs -> 
         {
-            gs = new GuildSettings();
-            gs.setGuildId(guildId);
-            em.persist(gs);
-        }
-        gs.setEmoji(emoji);
-        em.getTransaction().commit();
+            gs.setLatestRetrieval(now);
+            if(guild != null)
+            {
+                gs.setOwnerId(guild.getOwnerId());
+                if(guild.getPreferredLocale() != null && guild.getPreferredLocale() != WebLocale.UNKNOWN)
+                    gs.setLocale(guild.getPreferredLocale());
+                /*if(gs.getLocale() == null || gs.getLocale() == WebLocale.UNKNOWN)
+                {
+                    gs.setLocale(guild.getPreferredLocale());
+                }
+                /*if(gs.getManagerRoleId() == 0L)
+                {
+                    GuildRole legacy = guild.getRoles().stream()
+                            .filter(r -> r.getName().equalsIgnoreCase("giveaways"))
+                            .findFirst().orElse(null);
+                    if(legacy != null)
+                        gs.setManagerRoleId(legacy.getIdLong());
+                }*/
+            }
+        });
+    }
+    
+    public void setGuildColor(long guildId, Color color)
+    {
+        updateSettings(guildId, gs -> gs.setColor(color));
+    }
+    
+    public void setGuildEmoji(long guildId, String emoji)
+    {
+        updateSettings(guildId, gs -> gs.setEmoji(emoji));
+    }
+    
+    private void updateSettings(long guildId, Consumer<GuildSettings> update)
+    {
+        writer.write(guildId, s -> s.updateSettings(guildId, update), gs -> settings.update(guildId, gs));
     }
     
     // giveaways
     public Giveaway getGiveaway(long id)
     {
-        if(cachedGiveawaysReadonly.containsKey(id))
-            return cachedGiveawaysReadonly.get(id);
-        Giveaway g = em.find(Giveaway.class, id);
-        cachedGiveawaysReadonly.put(id, g);
-        return g;
-        //return em.find(Giveaway.class, id);
+        // misses are only cached briefly, since a button can be clicked before its giveaway is saved
+        return cachedGiveaways.get(id, storage::getGiveaway);
+    }
+    
+    public BoundedCache.Stats getGiveawayCacheStats()
+    {
+        return cachedGiveaways.getStats();
     }
     
     public List<Giveaway> getGiveawaysByGuild(long guildId)
     {
-        return em.createNamedQuery("Giveaway.getAllFromGuild", Giveaway.class).setParameter("guildId", guildId).getResultList();
+        return storage.getGiveawaysByGuild(guildId);
     }
     
     public List<Giveaway> getGiveawaysByChannel(long channelId)
     {
-        return em.createNamedQuery("Giveaway.getAllFromChannel", Giveaway.class).setParameter("channelId", channelId).getResultList();
+        return storage.getGiveawaysByChannel(channelId);
     }
     
     public long countGiveawaysByChannel(long channelId)
     {
-        return em.createNamedQuery("Giveaway.countAllFromChannel", Long.class).setParameter("channelId", channelId).getSingleResult();
+        return counters.countByChannel(channelId);
     }
     
     public long countGiveawaysByGuild(long guildId)
     {
-        return em.createNamedQuery("Giveaway.countAllFromGuild", Long.class).setParameter("guildId", guildId).getSingleResult();
+        return counters.countByGuild(guildId);
     }
     
     public long countAllGiveaways()
     {
-        return em.createNamedQuery("Giveaway.countAll", Long.class).getSingleResult();
+        return counters.countAll();
     }
     
     public List<Giveaway> getGiveawaysEndingBefore(Instant time)
     {
-        return em.createNamedQuery("Giveaway.getAllEndingBefore", Giveaway.class).setParameter("endTime", time.getEpochSecond()).getResultList();
+        return storage.getGiveawaysEndingBefore(time.getEpochSecond());
     }
     
-    public synchronized void createGiveaway(Giveaway giveaway)
+    public Map<Long, Long> getGiveawayEndTimes()
     {
-        em.getTransaction().begin();
-        em.persist(giveaway);
-        em.getTransaction().commit();
+        Map<Long, Long> endTimes = new HashMap<>();
+        storage.scanGiveaways((messageId, guildId, channelId, endTime) -> endTimes.put(messageId, endTime));
+        return endTimes;
     }
     
-    public synchronized void removeGiveaway(long id)
+    public void createGiveaway(Giveaway giveaway)
     {
-        cachedGiveawaysReadonly.remove(id);
-        Giveaway g = em.find(Giveaway.class, id);
-        if(g != null)
+        writer.write(giveaway.getGuildId(), s -> 
         {
-            em.getTransaction().begin();
-            em.remove(g);
-            em.getTransaction().commit();
-        }
-        GiveawayEntries ge = em.find(GiveawayEntries.class, id);
-        if(ge != null)
+            s.saveGiveaway(giveaway);
+            return null;
+        }, r -> 
         {
-            em.getTransaction().begin();
-            em.remove(ge);
-            em.getTransaction().commit();
-        }
+            cachedGiveaways.put(giveaway.getMessageId(), giveaway);
+            counters.add(giveaway.getMessageId(), giveaway.getGuildId(), giveaway.getChannelId());
+        });
+    }
+    
+    public void removeGiveaway(Giveaway giveaway)
+    {
+        long id = giveaway.getMessageId();
+        entries.discard(id);
+        writer.write(giveaway.getGuildId(), s -> 
+        {
+            s.removeGiveaway(id);
+            return null;
+        }, r -> 
+        {
+            cachedGiveaways.invalidate(id);
+            counters.remove(id);
+        });
     }
     
     
     // entries
-    public synchronized void updateUser(User user)
+    public void updateUser(User user)
     {
-        // update cached user
-        CachedUser u = em.find(CachedUser.class, user.getIdLong());
-        
-        // short circuit if data is up to date
-        if(u != null
-            && OtherUtil.strEquals(user.getUsername(), u.getUsername()) 
-            && OtherUtil.strEquals(user.getDiscriminator(), u.getDiscriminator()) 
-            && OtherUtil.strEquals(user.getAvatar(), u.getAvatar()))
-            return;
-        
-        em.getTransaction().begin();
-        if(u == null)
-        {
-            u = new CachedUser();
-            u.setId(user.getIdLong());
-            em.persist(u);
-        }
-        u.setUsername(user.getUsername());
-        u.setDiscriminator(user.getDiscriminator());
-        u.setAvatar(user.getAvatar());
-        em.getTransaction().commit();
+        // written in the background, and only if it changed
+        users.update(user.getIdLong(), user.getUsername(), user.getDiscriminator(), user.getAvatar());
     }
     
     public CachedUser getUser(long userId)
     {
-        return em.find(CachedUser.class, userId);
+        users.flush(new long[]{ userId });
+        return storage.getUser(userId);
     }
     
-    public synchronized int addEntry(long giveawayId, User user)
+    public int getPendingUserCount()
+    {
+        return users.getPendingCount();
+    }
+    
+    public int addEntry(long giveawayId, User user)
     {
         // update user
         updateUser(user);
         
-        // get entries
-        GiveawayEntries ge = getEntries(giveawayId);
-        
-        // short circuit if user has already entered
-        if(ge != null && ge.getUsers().contains(user.getIdLong()))
-            return -1;
-        
-        if(ge == null)
-        {
-            ge = new GiveawayEntries();
-            ge.setGiveawayId(giveawayId);
-            em.getTransaction().begin();
-            em.persist(ge);
-            em.getTransaction().commit();
-        }
-        cachedEntries.put(giveawayId, ge);
-        ge.addUser(user.getIdLong());
-        return ge.getUsers().size();
+        // returns -1 if the user has already entered
+        return entries.add(giveawayId, user.getIdLong());
     }
     
-    public synchronized boolean removeEntry(long giveawayId, User user)
+    public boolean removeEntry(long giveawayId, User user)
     {
         // update user
         updateUser(user);
         
-        // update entries
-        GiveawayEntries ge = getEntries(giveawayId);
-        
-        // short circuit if user is not already entered
-        if(ge == null || !ge.getUsers().contains(user.getIdLong()))
-            return false;
-        
-        //em.getTransaction().begin();
-        cachedEntries.put(giveawayId, ge);
-        ge.removeUser(user.getIdLong());
-        //em.getTransaction().commit();
-        return true;
+        // returns false if the user is not already entered
+        return entries.remove(giveawayId, user.getIdLong());
     }
     
     public synchronized void syncEntries()
     {
-        em.getTransaction().begin();
-        cachedEntries.values().forEach(e -> em.merge(e));
-        em.getTransaction().commit();
-        cachedEntries.clear();
+        // everything journaled up to here is in memory, so it is written by this flush
+        long marker = journal == null ? 0L : journal.seal();
+        entries.flush(changes -> modify(() -> storage.writeEntries(changes)));
+        if(journal != null)
+            journal.release(marker);
     }
     
     public List<CachedUser> getEntriesList(long giveawayId)
     {
-        GiveawayEntries ge = getEntries(giveawayId);
-        if(ge == null)
-            return Collections.emptyList();
-        return ge.getUsers().stream()
-                .map(u -> em.find(CachedUser.class, u))
-                .collect(Collectors.toList());
+        List<CachedUser> list = new ArrayList<>();
+        streamEntries(giveawayId, list::add);
+        return list;
+    }
+    
+    /**
+     * Passes the entrants of a giveaway to the consumer in entry order, as each
+     * batch of them is read
+     * 
+     * @param giveawayId the giveaway
+     * @param consumer receives the entrants
+     */
+    public void streamEntries(long giveawayId, Consumer<CachedUser> consumer)
+    {
+        streamUsers(getEntryIds(giveawayId), consumer);
+    }
+    
+    public long[] getEntryIds(long giveawayId)
+    {
+        return entries.getUsers(giveawayId);
+    }
+    
+    /**
+     * Passes users to the consumer in the given order, as each batch of them is
+     * read; users that are not stored are skipped
+     * 
+     * @param userIds the users
+     * @param consumer receives the users
+     */
+    public void streamUsers(long[] userIds, Consumer<CachedUser> consumer)
+    {
+        if(userIds.length == 0)
+            return;
+        users.flush(userIds);
+        storage.streamUsers(userIds, consumer);
+    }
+    
+    public List<CachedUser> getUsers(long[] userIds)
+    {
+        List<CachedUser> list = new ArrayList<>();
+        streamUsers(userIds, list::add);
+        return list;
     }
     
-    private GiveawayEntries getEntries(long giveawayId)
+    private void flushUsers()
     {
-        return cachedEntries.containsKey(giveawayId) ? cachedEntries.get(giveawayId) : em.find(GiveawayEntries.class, giveawayId);
+        try
+        {
+            users.flush();
+        }
+        catch(Exception ex)
+        {
+            log.error("Exception in flushing users: ", ex);
+        }
     }
     
     
@@ -309,51 +420,256 @@ public class Database
     public PremiumLevel getPremiumLevel(long guildId, long userId)
     {
         // get premium level of user
-        CachedUser user = em.find(CachedUser.class, userId);
-        PremiumLevel userPremium = user == null ? PremiumLevel.NONE : user.getPremiumLevel();
-        
+        PremiumLevel userPremium = premiumUsers.getOrDefault(userId, PremiumLevel.NONE);
+
         // get premium level of guild
-        GuildSettings guild = em.find(GuildSettings.class, guildId);
-        long ownerId = guild == null ? 0L : guild.getOwnerId();
-        CachedUser owner = em.find(CachedUser.class, ownerId);
-        PremiumLevel guildPremium = owner == null ? PremiumLevel.NONE : owner.getPremiumLevel();
-                
+        long ownerId = getSettings(guildId).getOwnerId();
+        PremiumLevel guildPremium = premiumUsers.getOrDefault(ownerId, PremiumLevel.NONE);
+
         return userPremium.level > guildPremium.level ? userPremium : guildPremium;
     }
     
-    public synchronized void updatePremiumLevel(long userId, String username, String discrim, String avatar, PremiumLevel premium)
+    public void updatePremiumLevel(long userId, String username, String discrim, String avatar, PremiumLevel premium)
+    {
+        users.invalidate(userId);
+        writer.write(userId, s -> 
+        {
+            s.updateUser(userId, u -> 
+            {
+                u.setUsername(username);
+                u.setDiscriminator(discrim);
+                u.setAvatar(avatar);
+                u.setPremiumLevel(premium);
+                u.setLastSeen(Instant.now());
+            });
+            return null;
+        }, r -> 
+        {
+            if(premium == PremiumLevel.NONE)
+                premiumUsers.remove(userId);
+            else
+                premiumUsers.put(userId, premium);
+        });
+    }
+    
+    public void removePremium(long userId)
+    {
+        writer.write(userId, s -> 
+        {
+            s.updateUser(userId, u -> 
+            {
+                // starts the time until the user can be compacted
+                u.setPremiumLevel(PremiumLevel.NONE);
+                u.setLastSeen(Instant.now());
+            });
+            return null;
+        }, r -> premiumUsers.remove(userId));
+    }
+    
+    public List<CachedUser> getAllPremiumUsers()
+    {
+        return storage.getPremiumUsers();
+    }
+    
+    
+    // compaction
+    /**
+     * Starts removing users without premium that have not been seen for the
+     * given time, in small batches once an hour. Users that host a giveaway or
+     * are entered in one are kept for another full ttl.
+     * 
+     * @param ttlDays days since a user was last seen before they are removed;
+     * must be more than the one day between updates of an unchanged user
+     */
+    public synchronized void startUserCompaction(long ttlDays)
     {
-        CachedUser u = em.find(CachedUser.class, userId);
-        em.getTransaction().begin();
-        if(u == null)
+        if(ttlDays < 2)
+            throw new IllegalArgumentException("User ttl must be at least 2 days");
+        if(compactor != null)
+            return;
+        compactor = Executors.newSingleThreadScheduledExecutor();
+        compactor.scheduleWithFixedDelay(() -> 
         {
-            u = new CachedUser();
-            u.setId(userId);
-            em.persist(u);
+            try
+            {
+                compactUsers(ttlDays, TimeUnit.DAYS);
+            }
+            catch(Exception ex)
+            {
+                log.error("Exception in compacting users: ", ex);
+            }
+        }, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.MINUTES);
+    }
+    
+    /**
+     * Runs one round of user compaction
+     * 
+     * @param ttl time since a user was last seen before they are removed
+     * @param unit the unit of the ttl
+     * @return the number of users removed
+     */
+    public int compactUsers(long ttl, TimeUnit unit)
+    {
+        long seenBefore = Instant.now().getEpochSecond() - unit.toSeconds(ttl);
+        
+        // found in one scan, and then removed in small batches
+        List<CachedUser> stale = storage.getStaleUsers(seenBefore, COMPACTION_BATCH_SIZE * COMPACTION_BATCHES);
+        if(stale.isEmpty())
+            return 0;
+        Set<Long> referenced = storage.getReferencedUsers(stale.stream().mapToLong(CachedUser::getId).toArray());
+        if(!referenced.isEmpty())
+        {
+            // seen now, so they are neither removed nor found again by the next run
+            Instant now = Instant.now();
+            Map<Long, Consumer<CachedUser>> touches = new HashMap<>();
+            referenced.forEach(id -> touches.put(id, u -> u.setLastSeen(now)));
+            storage.updateUsers(touches);
+        }
+        List<CachedUser> candidates = stale.stream().filter(u -> !referenced.contains(u.getId())).collect(Collectors.toList());
+        int removed = 0;
+        long bytes = 0;
+        for(int from = 0; from < candidates.size(); from += COMPACTION_BATCH_SIZE)
+        {
+            if(from > 0 && !pause())
+                break;
+            List<CachedUser> batch = candidates.subList(from, Math.min(candidates.size(), from + COMPACTION_BATCH_SIZE));
+            Set<Long> gone = new HashSet<>();
+            Arrays.stream(storage.removeStaleUsers(batch.stream().mapToLong(CachedUser::getId).toArray(), seenBefore)).forEach(gone::add);
+            for(CachedUser u: batch)
+            {
+                if(!gone.contains(u.getId()))
+                    continue;
+                users.invalidate(u.getId());
+                bytes += EntityCodec.encode(u).length;
+            }
+            removed += gone.size();
         }
-        u.setUsername(username);
-        u.setDiscriminator(discrim);
-        u.setAvatar(avatar);
-        u.setPremiumLevel(premium);
-        em.getTransaction().commit();
+        compactedUsers.addAndGet(removed);
+        compactedBytes.addAndGet(bytes);
+        if(removed > 0)
+            log.info(String.format("Compacted %d users not seen since %s, reclaiming about %d KiB", 
+                    removed, Instant.ofEpochSecond(seenBefore), bytes / 1024));
+        return removed;
     }
     
-    public synchronized void removePremium(long userId)
+    // rate limits compaction, returning false if interrupted
+    private static boolean pause()
     {
-        CachedUser u = em.find(CachedUser.class, userId);
-        em.getTransaction().begin();
-        if(u == null)
+        try
         {
-            u = new CachedUser();
-            u.setId(userId);
-            em.persist(u);
+            Thread.sleep(COMPACTION_PAUSE);
+            return true;
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return false;
         }
-        u.setPremiumLevel(PremiumLevel.NONE);
-        em.getTransaction().commit();
     }
     
-    public List<CachedUser> getAllPremiumUsers()
+    
+    // snapshot
+    /**
+     * Writes the cached giveaways, loaded entries, cached settings and premium
+     * levels to the snapshot file, after each entry sync and on shutdown. The
+     * snapshot is only marked as matching the database if nothing was written to
+     * the database while it was taken. Nothing is written if the last snapshot
+     * still matches.
+     */
+    public void writeSnapshot()
     {
-        return em.createNamedQuery("CachedUser.findAllWithPremium", CachedUser.class).getResultList();
+        if(snapshotFile == null || snapshotStamp != 0L)
+            return;
+        StateSnapshot snapshot = new StateSnapshot(Math.max(1L, System.currentTimeMillis()));
+        long seen;
+        snapshotLock.writeLock().lock();
+        try
+        {
+            seen = modifications.get();
+            cachedGiveaways.forEach((id, g) -> snapshot.getGiveaways().add(g));
+            entries.forEachFlushed(snapshot.getEntries()::put);
+            settings.forEach(snapshot.getSettings()::put);
+            snapshot.getPremiumUsers().putAll(premiumUsers);
+        }
+        finally
+        {
+            snapshotLock.writeLock().unlock();
+        }
+        
+        try
+        {
+            snapshot.write(snapshotFile);
+        }
+        catch(IOException ex)
+        {
+            log.error("Failed to write snapshot: ", ex);
+            return;
+        }
+        
+        snapshotLock.writeLock().lock();
+        try
+        {
+            if(modifications.get() != seen)
+                return;
+            storage.setSnapshotStamp(snapshot.getStamp());
+            snapshotStamp = snapshot.getStamp();
+        }
+        finally
+        {
+            snapshotLock.writeLock().unlock();
+        }
+        log.info(String.format("Wrote snapshot of %d giveaways, %d entry sets and %d settings", 
+                snapshot.getGiveaways().size(), snapshot.getEntries().size(), snapshot.getSettings().size()));
+    }
+    
+    private boolean loadSnapshot()
+    {
+        if(snapshotFile == null)
+            return false;
+        StateSnapshot snapshot = StateSnapshot.read(snapshotFile);
+        long stamp = storage.getSnapshotStamp();
+        if(snapshot == null || stamp == 0L || snapshot.getStamp() != stamp)
+        {
+            log.info("No snapshot matching the database, starting with empty caches");
+            return false;
+        }
+        snapshot.getGiveaways().forEach(g -> cachedGiveaways.put(g.getMessageId(), g));
+        snapshot.getEntries().forEach(entries::preload);
+        snapshot.getSettings().forEach(settings::update);
+        premiumUsers.putAll(snapshot.getPremiumUsers());
+        snapshotStamp = stamp;
+        log.info(String.format("Loaded snapshot of %d giveaways, %d entry sets and %d settings", 
+                snapshot.getGiveaways().size(), snapshot.getEntries().size(), snapshot.getSettings().size()));
+        return true;
+    }
+    
+    // every write of anything in the snapshot goes through here
+    private void modify(Runnable write)
+    {
+        snapshotLock.readLock().lock();
+        try
+        {
+            modifications.incrementAndGet();
+            if(snapshotStamp != 0L)
+                clearSnapshotStamp();
+            write.run();
+        }
+        finally
+        {
+            snapshotLock.readLock().unlock();
+        }
+    }
+    
+    private void clearSnapshotStamp()
+    {
+        synchronized(stampLock)
+        {
+            // the snapshot no longer matches once this write is done
+            if(snapshotStamp != 0L)
+            {
+                storage.setSnapshotStamp(0L);
+                snapshotStamp = 0L;
+            }
+        }
     }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import com.jagrosh.giveawaybot.entities.PremiumLevel;
+import com.jagrosh.interactions.entities.WebLocale;
+import java.io.*;
+import java.time.Instant;
+
+/**
+ * Binary encoding of the entities, for engines that store plain bytes. Each
+ * record starts with a version byte so fields can be added later.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+class EntityCodec
+{
+    private final static int VERSION = 2; // 2: users have a last seen time
+
+    private EntityCodec() {}
+
+    static byte[] encode(Giveaway g)
+    {
+        return write(out ->
+        {
+            out.writeLong(g.getMessageId());
+            out.writeLong(g.getChannelId());
+            out.writeLong(g.getGuildId());
+            out.writeLong(g.getUserId());
+            out.writeLong(g.getEndTime());
+            out.writeInt(g.getWinners());
+            writeString(out, g.getPrize());
+            writeString(out, g.getDescription());
+        });
+    }
+
+    static Giveaway decodeGiveaway(byte[] bytes)
+    {
+        return read(bytes, (in, version) ->
+        {
+            Giveaway g = new Giveaway();
+            g.setMessageId(in.readLong());
+            g.setChannelId(in.readLong());
+            g.setGuildId(in.readLong());
+            g.setUserId(in.readLong());
+            g.setEndTime(in.readLong());
+            g.setWinners(in.readInt());
+            g.setPrize(readString(in));
+            g.setDescription(readString(in));
+            return g;
+        });
+    }
+
+    static byte[] encode(CachedUser u)
+    {
+        return write(out ->
+        {
+            out.writeLong(u.getId());
+            writeString(out, u.getUsername());
+            writeString(out, u.getDiscriminator());
+            writeString(out, u.getAvatar());
+            out.writeInt(u.getPremiumLevel().level);
+            out.writeLong(u.getLastSeen().getEpochSecond());
+        });
+    }
+
+    static CachedUser decodeUser(byte[] bytes)
+    {
+        return read(bytes, (in, version) ->
+        {
+            CachedUser u = new CachedUser();
+            u.setId(in.readLong());
+            u.setUsername(readString(in));
+            u.setDiscriminator(readString(in));
+            u.setAvatar(readString(in));
+            u.setPremiumLevel(PremiumLevel.get(in.readInt()));
+            if(version >= 2)
+                u.setLastSeen(Instant.ofEpochSecond(in.readLong()));
+            return u;
+        });
+    }
+
+    static byte[] encode(GuildSettings gs)
+    {
+        return write(out ->
+        {
+            out.writeLong(gs.getGuildId());
+            out.writeInt(gs.getColorVal());
+            writeString(out, gs.getEmoji());
+            out.writeLong(gs.getOwnerId());
+            writeString(out, gs.getLocale().getCode());
+            out.writeLong(gs.getLatestRetrieval().getEpochSecond());
+        });
+    }
+
+    static GuildSettings decodeSettings(byte[] bytes)
+    {
+        return read(bytes, (in, version) ->
+        {
+            GuildSettings gs = new GuildSettings(in.readLong());
+            gs.setColorVal(in.readInt());
+            gs.setEmoji(readString(in));
+            gs.setOwnerId(in.readLong());
+            gs.setLocale(WebLocale.of(readString(in)));
+            gs.setLatestRetrieval(Instant.ofEpochSecond(in.readLong()));
+            return gs;
+        });
+    }
+
+    private static byte[] write(Writer writer)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            writer.write(out);
+            return bytes.toByteArray();
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static <T> T read(byte[] bytes, Reader<T> reader)
+    {
+        if(bytes == null)
+            return null;
+        try
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            int version = in.readByte();
+            if(version < 1 || version > VERSION)
+                throw new IOException("Unsupported record version: " + version);
+            return reader.read(in, version);
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static void writeString(DataOutput out, String str) throws IOException
+    {
+        out.writeBoolean(str != null);
+        if(str != null)
+            out.writeUTF(str);
+    }
+
+    private static String readString(DataInput in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private interface Writer
+    {
+        void write(DataOutput out) throws IOException;
+    }
+
+    private interface Reader<T>
+    {
+        T read(DataInput in, int version) throws IOException;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+
+/**
+ * A fixed-size pool of EntityManagers. An EntityManager is not thread-safe, so
+ * each one is only ever held by one thread at a time, and it is cleared before
+ * being handed to the next thread. Nested calls on a thread that already holds
+ * an EntityManager reuse it (and join its transaction, if one is active).
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class EntityManagerPool
+{
+    private final EntityManagerFactory emf;
+    private final BlockingQueue<EntityManager> idle;
+    private final ThreadLocal<EntityManager> held = new ThreadLocal<>();
+    private final int size;
+
+    private volatile boolean closed = false;
+
+    public EntityManagerPool(EntityManagerFactory emf, int size)
+    {
+        if(size < 1)
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        this.emf = emf;
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(size);
+        for(int i = 0; i < size; i++)
+            idle.add(emf.createEntityManager());
+    }
+
+    public <T> T call(Function<EntityManager, T> work)
+    {
+        EntityManager em = held.get();
+        if(em != null)
+            return work.apply(em);
+        em = acquire();
+        held.set(em);
+        try
+        {
+            return work.apply(em);
+        }
+        finally
+        {
+            held.remove();
+            release(em);
+        }
+    }
+
+    public <T> T transaction(Function<EntityManager, T> work)
+    {
+        return call(em ->
+        {
+            EntityTransaction tx = em.getTransaction();
+            if(tx.isActive())
+                return work.apply(em);
+            tx.begin();
+            try
+            {
+                T result = work.apply(em);
+                tx.commit();
+                return result;
+            }
+            finally
+            {
+                if(tx.isActive())
+                    tx.rollback();
+            }
+        });
+    }
+
+    public void execute(Consumer<EntityManager> work)
+    {
+        transaction(em ->
+        {
+            work.accept(em);
+            return null;
+        });
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    public void close()
+    {
+        closed = true;
+        List<EntityManager> ems = new ArrayList<>();
+        idle.drainTo(ems);
+        ems.forEach(em -> closeQuietly(em));
+    }
+
+    private EntityManager acquire()
+    {
+        if(closed)
+            throw new PersistenceException("EntityManager pool is closed");
+        try
+        {
+            return idle.take();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while waiting for an EntityManager", ex);
+        }
+    }
+
+    private void release(EntityManager em)
+    {
+        try
+        {
+            if(em.getTransaction().isActive())
+                em.getTransaction().rollback();
+            em.clear();
+        }
+        catch(RuntimeException ex)
+        {
+            // a broken EntityManager is replaced rather than handed out again
+            closeQuietly(em);
+        }
+        if(closed)
+        {
+            closeQuietly(em);
+            return;
+        }
+        idle.add(em.isOpen() ? em : emf.createEntityManager());
+    }
+
+    private static void closeQuietly(EntityManager em)
+    {
+        try
+        {
+            if(em.isOpen())
+                em.close();
+        }
+        catch(RuntimeException ignore) {}
+    }
+}
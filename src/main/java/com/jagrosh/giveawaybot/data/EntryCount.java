@@ -0,0 +1,58 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import javax.persistence.*;
+
+/**
+ * The number of entries in a giveaway, kept up to date as entries are written
+ * so that counting does not scan the giveaway's entries
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+@Entity
+@Table(name = "ENTRY_COUNTS")
+@NamedQueries({
+    @NamedQuery(name = "EntryCount.countAll", query = "SELECT COUNT(c) FROM EntryCount c"),
+    @NamedQuery(name = "EntryCount.delete", query = "DELETE FROM EntryCount c WHERE c.giveawayId = :giveawayId")
+})
+public class EntryCount
+{
+    @Id
+    @Column(name = "GIVEAWAY_ID")
+    private long giveawayId;
+
+    @Column(name = "COUNT")
+    private int count;
+
+    public EntryCount() {}
+
+    public EntryCount(long giveawayId, int count)
+    {
+        this.giveawayId = giveawayId;
+        this.count = count;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public void add(int delta)
+    {
+        count += delta;
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An append-only journal of giveaway enter and leave events, written to
+ * memory-mapped segment files. Appending is a reservation plus three puts into
+ * mapped memory, so the events survive a crash of the bot without costing a
+ * transaction per click.
+ *
+ * Segments are sealed when the entries they describe are about to be written to
+ * the database, and deleted once that write has committed. Anything still on
+ * disk at startup has not been written yet, and is replayed.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class EntryJournal
+{
+    public final static byte ENTER = 1, LEAVE = 2;
+    private final static int MAGIC = 0x47424A31; // GBJ1
+    private final static int HEADER_SIZE = 16, RECORD_SIZE = 17;
+    private final static int DEFAULT_SEGMENT_SIZE = HEADER_SIZE + RECORD_SIZE * (1 << 19); // ~8.5mb
+    private final static String PREFIX = "entries-", SUFFIX = ".journal";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Segment> sealed = new ArrayList<>();
+
+    private volatile Segment current;
+    private long nextSequence;
+
+    public EntryJournal(String directory)
+    {
+        this(Paths.get(directory), DEFAULT_SEGMENT_SIZE);
+    }
+
+    public EntryJournal(Path directory, int segmentSize)
+    {
+        if(segmentSize < HEADER_SIZE + RECORD_SIZE)
+            throw new IllegalArgumentException("Segment size is too small");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        try
+        {
+            Files.createDirectories(directory);
+            for(Path p: listSegments())
+                sealed.add(Segment.open(p));
+            nextSequence = sealed.isEmpty() ? 0 : sealed.get(sealed.size() - 1).sequence + 1;
+            current = Segment.create(directory, nextSequence++, segmentSize);
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Passes every event left over from a previous run to the consumer, in the
+     * order that they were appended
+     *
+     * @param consumer receives the events
+     * @return the number of events replayed
+     */
+    public int replay(EventConsumer consumer)
+    {
+        int count = 0;
+        lock.readLock().lock();
+        try
+        {
+            for(Segment s: sealed)
+                count += s.replay(consumer);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+        return count;
+    }
+
+    public void append(byte type, long giveawayId, long userId)
+    {
+        while(true)
+        {
+            Segment s;
+            lock.readLock().lock();
+            try
+            {
+                s = current;
+                if(s.tryAppend(type, giveawayId, userId))
+                    return;
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+            rotate(s);
+        }
+    }
+
+    /**
+     * Seals the current segment, so that new events go to a fresh one. Every
+     * event in the sealed segments has already been applied in memory, so once
+     * those changes are committed the segments can be released.
+     *
+     * @return a marker to pass to {@link #release(long)} after the changes are committed
+     */
+    public long seal()
+    {
+        Segment s;
+        lock.writeLock().lock();
+        try
+        {
+            s = current;
+            if(s.isEmpty())
+                return s.sequence - 1;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+        rotate(s);
+        return s.sequence;
+    }
+
+    /**
+     * Deletes sealed segments up to and including the given marker
+     *
+     * @param marker the value returned by {@link #seal()}
+     */
+    public void release(long marker)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            while(!sealed.isEmpty() && sealed.get(0).sequence <= marker)
+            {
+                Segment s = sealed.remove(0);
+                s.unmap();
+                Files.deleteIfExists(s.path);
+            }
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void force()
+    {
+        // not under the lock, so that a rotation waiting for it does not hold up appends
+        current.force();
+    }
+
+    public int getSegmentCount()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return sealed.size() + 1;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void close()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            current.force();
+            current.unmap();
+            sealed.forEach(Segment::unmap);
+            if(current.isEmpty())
+                Files.deleteIfExists(current.path);
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void rotate(Segment full)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            // another thread may have already rotated this segment
+            if(current != full)
+                return;
+            current = Segment.create(directory, nextSequence++, segmentSize);
+            sealed.add(full);
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+        // nothing is appending to it any more, so it is flushed without holding up new appends
+        full.force();
+    }
+
+    private List<Path> listSegments() throws IOException
+    {
+        List<Path> paths = new ArrayList<>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX))
+        {
+            stream.forEach(paths::add);
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    // frees a mapping now, rather than whenever its buffer is collected; where the
+    // JVM does not allow this, it is left to the collector
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try
+        {
+            // java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+            return;
+        }
+        catch(ReflectiveOperationException | RuntimeException ex) {}
+        try
+        {
+            // java 8
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buffer);
+            if(c != null)
+                c.getClass().getMethod("clean").invoke(c);
+        }
+        catch(ReflectiveOperationException | RuntimeException ex) {}
+    }
+
+    public interface EventConsumer
+    {
+        void accept(byte type, long giveawayId, long userId);
+    }
+
+    private static class Segment
+    {
+        private final Path path;
+        private final long sequence;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger position;
+        private boolean unmapped = false; // guarded by this
+
+        private Segment(Path path, long sequence, MappedByteBuffer buffer, int position)
+        {
+            this.path = path;
+            this.sequence = sequence;
+            this.buffer = buffer;
+            this.position = new AtomicInteger(position);
+        }
+
+        private static Segment create(Path directory, long sequence, int size) throws IOException
+        {
+            Path path = directory.resolve(String.format("%s%016d%s", PREFIX, sequence, SUFFIX));
+            try(FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, size);
+                buffer.putLong(8, sequence);
+                return new Segment(path, sequence, buffer, HEADER_SIZE);
+            }
+        }
+
+        private static Segment open(Path path) throws IOException
+        {
+            try(FileChannel fc = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, fc.size());
+                if(fc.size() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+                    throw new IOException("Not a journal segment: " + path);
+                return new Segment(path, buffer.getLong(8), buffer, buffer.capacity());
+            }
+        }
+
+        private boolean tryAppend(byte type, long giveawayId, long userId)
+        {
+            int pos = position.getAndAdd(RECORD_SIZE);
+            if(pos + RECORD_SIZE > buffer.capacity())
+                return false;
+            // the type is written last; a slot with no type was never completed
+            buffer.putLong(pos + 1, giveawayId);
+            buffer.putLong(pos + 9, userId);
+            buffer.put(pos, type);
+            return true;
+        }
+
+        // a segment may be released while it is still being flushed
+        private synchronized void force()
+        {
+            if(!unmapped)
+                buffer.force();
+        }
+
+        private synchronized void unmap()
+        {
+            if(unmapped)
+                return;
+            unmapped = true;
+            EntryJournal.unmap(buffer);
+        }
+
+        private boolean isEmpty()
+        {
+            return position.get() == HEADER_SIZE;
+        }
+
+        private int replay(EventConsumer consumer)
+        {
+            int count = 0;
+            for(int pos = HEADER_SIZE; pos + RECORD_SIZE <= buffer.capacity(); pos += RECORD_SIZE)
+            {
+                byte type = buffer.get(pos);
+                if(type != ENTER && type != LEAVE)
+                    continue;
+                consumer.accept(type, buffer.getLong(pos + 1), buffer.getLong(pos + 9));
+                count++;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import com.jagrosh.giveawaybot.util.LongHashSet;
+import com.jagrosh.giveawaybot.util.PackedLongSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * In-memory entries for every giveaway that has recently been entered or left.
+ * Counts are lock-free; membership checks, adds and removes lock only the
+ * giveaway being looked at, so clicks on different giveaways never contend.
+ * Given a {@link Storage}, a giveaway is not loaded in full until its users are
+ * needed: until then it holds only its count and the users it has looked up,
+ * so a click on a giveaway with many entries costs one key lookup.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class EntryRegistry
+{
+    private final ConcurrentHashMap<Long, Entries> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Integer> discarded = new ConcurrentHashMap<>(); // id -> flushes when discarded
+    private volatile int flushes = 0;
+    private final LongFunction<Collection<Long>> loader;
+    private final Storage lookup; // null if giveaways are loaded in full
+    private final EntryJournal journal;
+
+    public EntryRegistry(LongFunction<Collection<Long>> loader)
+    {
+        this(loader, null);
+    }
+
+    public EntryRegistry(LongFunction<Collection<Long>> loader, EntryJournal journal)
+    {
+        this.loader = loader;
+        this.lookup = null;
+        this.journal = journal;
+    }
+
+    public EntryRegistry(Storage storage, EntryJournal journal)
+    {
+        this.loader = storage::getEntries;
+        this.lookup = storage;
+        this.journal = journal;
+    }
+
+    /**
+     * Adds a user to a giveaway
+     *
+     * @param giveawayId the giveaway
+     * @param userId the user entering
+     * @return the number of entries after adding, or -1 if the user had already
+     * entered or the giveaway has been discarded
+     */
+    public int add(long giveawayId, long userId)
+    {
+        while(true)
+        {
+            Entries e = get(giveawayId);
+            if(e == null)
+                return -1;
+            synchronized(e)
+            {
+                if(e.retired)
+                    continue;
+                e.touched = true;
+                if(e.isEntered(userId, lookup))
+                    return -1;
+                e.enter(userId);
+                e.added(userId);
+                if(journal != null)
+                    journal.append(EntryJournal.ENTER, giveawayId, userId);
+                return e.count;
+            }
+        }
+    }
+
+    /**
+     * Removes a user from a giveaway
+     *
+     * @param giveawayId the giveaway
+     * @param userId the user leaving
+     * @return true if the user was entered and has been removed
+     */
+    public boolean remove(long giveawayId, long userId)
+    {
+        while(true)
+        {
+            Entries e = get(giveawayId);
+            if(e == null)
+                return false;
+            synchronized(e)
+            {
+                if(e.retired)
+                    continue;
+                e.touched = true;
+                if(!e.isEntered(userId, lookup))
+                    return false;
+                e.leave(userId);
+                e.removed(userId);
+                if(journal != null)
+                    journal.append(EntryJournal.LEAVE, giveawayId, userId);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Applies an event from a previous run without journaling it again
+     *
+     * @param type {@link EntryJournal#ENTER} or {@link EntryJournal#LEAVE}
+     * @param giveawayId the giveaway
+     * @param userId the user
+     */
+    public void replay(byte type, long giveawayId, long userId)
+    {
+        while(true)
+        {
+            Entries e = get(giveawayId);
+            if(e == null)
+                return;
+            synchronized(e)
+            {
+                if(e.retired)
+                    continue;
+                boolean entered = e.isEntered(userId, lookup);
+                if(type == EntryJournal.ENTER && !entered)
+                {
+                    e.enter(userId);
+                    e.added(userId);
+                }
+                else if(type == EntryJournal.LEAVE && entered)
+                {
+                    e.leave(userId);
+                    e.removed(userId);
+                }
+                return;
+            }
+        }
+    }
+
+    public boolean contains(long giveawayId, long userId)
+    {
+        Entries e = get(giveawayId);
+        if(e == null)
+            return false;
+        synchronized(e)
+        {
+            return e.isEntered(userId, lookup);
+        }
+    }
+
+    public int count(long giveawayId)
+    {
+        Entries e = get(giveawayId);
+        return e == null ? 0 : e.count;
+    }
+
+    public long[] getUsers(long giveawayId)
+    {
+        Entries e = get(giveawayId);
+        if(e == null)
+            return new long[0];
+        synchronized(e)
+        {
+            if(!e.complete)
+                e.complete(loader.apply(giveawayId));
+            return e.users.toArray();
+        }
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Loads the entries of a giveaway from somewhere other than the loader,
+     * unless they are already loaded
+     *
+     * @param giveawayId the giveaway
+     * @param users every user entered in it
+     */
+    public void preload(long giveawayId, PackedLongSet users)
+    {
+        if(!discarded.containsKey(giveawayId))
+            entries.computeIfAbsent(giveawayId, id -> new Entries(id, users));
+    }
+
+    /**
+     * Passes the entries of every fully loaded giveaway to the consumer, as they
+     * were when last flushed; changes since then are in the journal, if there is one
+     *
+     * @param consumer receives the giveaway ids and their users
+     */
+    public void forEachFlushed(BiConsumer<Long, PackedLongSet> consumer)
+    {
+        for(Entries e: entries.values())
+        {
+            EntrySet flushed;
+            synchronized(e)
+            {
+                if(e.retired || !e.complete)
+                    continue;
+                flushed = new EntrySet(e.users.toPacked());
+                e.added.forEach(flushed::remove);
+                e.removed.forEach(flushed::add);
+            }
+            consumer.accept(e.giveawayId, flushed.toPacked());
+        }
+    }
+
+    /**
+     * Forgets a giveaway entirely, without persisting any pending changes. Clicks
+     * that arrive late are ignored until the next flush has passed.
+     *
+     * @param giveawayId the giveaway to forget
+     */
+    public void discard(long giveawayId)
+    {
+        discarded.put(giveawayId, flushes);
+        Entries e = entries.remove(giveawayId);
+        if(e != null)
+            synchronized(e)
+            {
+                e.retired = true;
+            }
+    }
+
+    /**
+     * Hands the entries added and removed since the last flush to the writer,
+     * and then forgets giveaways that have not been used since the last flush.
+     * If the writer fails, the changes are kept so that the next flush retries.
+     *
+     * @param writer persists the changes
+     */
+    public synchronized void flush(Consumer<List<Changes>> writer)
+    {
+        List<Changes> changed = new ArrayList<>();
+        for(Entries e: entries.values())
+        {
+            synchronized(e)
+            {
+                if(e.retired || !e.isDirty())
+                    continue;
+                changed.add(new Changes(e.giveawayId, e.added, e.removed));
+                e.added = new LongHashSet();
+                e.removed = new LongHashSet();
+            }
+        }
+
+        if(!changed.isEmpty())
+        {
+            try
+            {
+                writer.accept(changed);
+            }
+            catch(RuntimeException ex)
+            {
+                for(Changes c: changed)
+                {
+                    Entries e = entries.get(c.giveawayId);
+                    if(e != null)
+                        synchronized(e)
+                        {
+                            // replaying the failed changes cancels out anything undone since
+                            c.added.forEach(u -> e.added(u));
+                            c.removed.forEach(u -> e.removed(u));
+                        }
+                }
+                throw ex;
+            }
+        }
+
+        for(Entries e: entries.values())
+        {
+            synchronized(e)
+            {
+                if(e.isDirty() || e.touched)
+                    e.touched = false;
+                else if(entries.remove(e.giveawayId, e))
+                    e.retired = true;
+            }
+        }
+
+        // by now every click that raced a discard has arrived
+        int flushed = flushes++;
+        discarded.values().removeIf(f -> f < flushed);
+    }
+
+    // null if the giveaway has been discarded
+    private Entries get(long giveawayId)
+    {
+        Entries e = entries.get(giveawayId);
+        if(e != null)
+            return e;
+        if(discarded.containsKey(giveawayId))
+            return null;
+
+        // loaded outside the map, so a slow load does not hold up other giveaways
+        Entries loaded = lookup == null
+                ? new Entries(giveawayId, loader.apply(giveawayId))
+                : new Entries(giveawayId, lookup.countEntries(giveawayId));
+        e = entries.putIfAbsent(giveawayId, loaded);
+        if(e != null)
+            return e;
+        if(discarded.containsKey(giveawayId))
+        {
+            // discarded while it loaded
+            discard(giveawayId);
+            return null;
+        }
+        return loaded;
+    }
+
+    public static class Changes
+    {
+        private final long giveawayId;
+        private final LongHashSet added, removed;
+
+        private Changes(long giveawayId, LongHashSet added, LongHashSet removed)
+        {
+            this.giveawayId = giveawayId;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        public long getGiveawayId()
+        {
+            return giveawayId;
+        }
+
+        public LongHashSet getAdded()
+        {
+            return added;
+        }
+
+        public LongHashSet getRemoved()
+        {
+            return removed;
+        }
+    }
+
+    private static class Entries
+    {
+        private final long giveawayId;
+        private volatile int count;
+
+        // guarded by this
+        private final EntrySet users; // if not complete, only the users known to be entered
+        private final LongHashSet absent = new LongHashSet(); // if not complete, users known not to be entered
+        private LongHashSet added = new LongHashSet(), removed = new LongHashSet();
+        private boolean complete, touched = true, retired = false;
+
+        private Entries(long giveawayId, Collection<Long> persisted)
+        {
+            this.giveawayId = giveawayId;
+            this.users = new EntrySet();
+            persisted.forEach(u -> users.add(u));
+            this.count = users.size();
+            this.complete = true;
+        }
+
+        private Entries(long giveawayId, PackedLongSet persisted)
+        {
+            this.giveawayId = giveawayId;
+            this.users = new EntrySet(persisted);
+            this.count = users.size();
+            this.complete = true;
+        }
+
+        private Entries(long giveawayId, int persistedCount)
+        {
+            this.giveawayId = giveawayId;
+            this.users = new EntrySet();
+            this.count = persistedCount;
+            this.complete = false;
+        }
+
+        // looks the user up in storage only if it is not yet known either way; what is
+        // known in memory is never looked up again, so a flush that has not committed
+        // yet cannot be read back stale
+        private boolean isEntered(long userId, Storage lookup)
+        {
+            if(users.contains(userId))
+                return true;
+            if(complete || absent.contains(userId))
+                return false;
+            boolean entered = lookup.hasEntry(giveawayId, userId);
+            if(entered)
+                users.add(userId);
+            else
+                absent.add(userId);
+            return entered;
+        }
+
+        private void enter(long userId)
+        {
+            users.add(userId);
+            absent.remove(userId);
+            count++;
+        }
+
+        private void leave(long userId)
+        {
+            users.remove(userId);
+            if(!complete)
+                absent.add(userId);
+            count--;
+        }
+
+        // merges in the persisted users, less those that have left since
+        private void complete(Collection<Long> persisted)
+        {
+            persisted.forEach(u -> 
+            {
+                if(!absent.contains(u))
+                    users.add(u);
+            });
+            absent.clear();
+            count = users.size();
+            complete = true;
+        }
+
+        private boolean isDirty()
+        {
+            return !added.isEmpty() || !removed.isEmpty();
+        }
+
+        private void added(long userId)
+        {
+            if(!removed.remove(userId))
+                added.add(userId);
+        }
+
+        private void removed(long userId)
+        {
+            if(!added.remove(userId))
+                removed.add(userId);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import com.jagrosh.giveawaybot.util.LongHashSet;
+import com.jagrosh.giveawaybot.util.PackedLongSet;
+import java.util.function.LongConsumer;
+
+/**
+ * The user ids entered into one giveaway. Small and medium giveaways are a
+ * plain {@link LongHashSet}; once a giveaway grows past the pack threshold, its
+ * users are packed into a {@link PackedLongSet}, and later changes are kept in
+ * small overlays until they are big enough to be worth re-packing.
+ * Not thread-safe.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class EntrySet
+{
+    private final static int PACK_THRESHOLD = 1 << 16;
+
+    private PackedLongSet packed = PackedLongSet.EMPTY;
+    private LongHashSet added = new LongHashSet(), removed = new LongHashSet();
+
+    public EntrySet() {}
+
+    public EntrySet(PackedLongSet packed)
+    {
+        this.packed = packed;
+    }
+
+    public boolean add(long userId)
+    {
+        if(packed.contains(userId))
+            return removed.remove(userId);
+        if(!added.add(userId))
+            return false;
+        if(added.size() >= PACK_THRESHOLD && added.size() > packed.size() / 8)
+            repack();
+        return true;
+    }
+
+    public boolean remove(long userId)
+    {
+        if(!packed.contains(userId))
+            return added.remove(userId);
+        if(!removed.add(userId))
+            return false;
+        if(removed.size() > packed.size() / 8)
+            repack();
+        return true;
+    }
+
+    public boolean contains(long userId)
+    {
+        return packed.contains(userId) ? !removed.contains(userId) : added.contains(userId);
+    }
+
+    public int size()
+    {
+        return packed.size() - removed.size() + added.size();
+    }
+
+    public boolean isPacked()
+    {
+        return !packed.isEmpty();
+    }
+
+    public void forEach(LongConsumer consumer)
+    {
+        if(removed.isEmpty())
+            packed.forEach(consumer);
+        else
+            packed.forEach(u ->
+            {
+                if(!removed.contains(u))
+                    consumer.accept(u);
+            });
+        added.forEach(consumer);
+    }
+
+    public long[] toArray()
+    {
+        long[] arr = new long[size()];
+        int[] i = {0};
+        forEach(u -> arr[i[0]++] = u);
+        return arr;
+    }
+
+    /**
+     * @return every user, packed into a single sorted set
+     */
+    public PackedLongSet toPacked()
+    {
+        if(added.isEmpty() && removed.isEmpty())
+            return packed;
+        // merge the sorted additions into the already-sorted packed users
+        long[] extra = added.toSortedArray();
+        long[] merged = new long[size()];
+        int[] n = {0}, e = {0};
+        packed.forEach(u ->
+        {
+            while(e[0] < extra.length && extra[e[0]] < u)
+                merged[n[0]++] = extra[e[0]++];
+            if(!removed.contains(u))
+                merged[n[0]++] = u;
+        });
+        while(e[0] < extra.length)
+            merged[n[0]++] = extra[e[0]++];
+        return PackedLongSet.of(merged, n[0]);
+    }
+
+    private void repack()
+    {
+        packed = toPacked();
+        added = new LongHashSet();
+        removed = new LongHashSet();
+    }
+}
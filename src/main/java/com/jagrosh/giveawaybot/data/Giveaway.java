@@ -16,6 +16,8 @@
 package com.jagrosh.giveawaybot.data;
 
 import java.time.Instant;
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.Indices;
 import javax.persistence.*;
 
 /**
@@ -30,7 +32,15 @@ import javax.persistence.*;
     @NamedQuery(name = "Giveaway.countAllFromGuild", query = "SELECT COUNT(g) FROM Giveaway g WHERE g.guildId = :guildId"),
     @NamedQuery(name = "Giveaway.getAllFromChannel", query = "SELECT g FROM Giveaway g WHERE g.channelId = :channelId"),
     @NamedQuery(name = "Giveaway.getAllFromGuild", query = "SELECT g FROM Giveaway g WHERE g.guildId = :guildId"),
-    @NamedQuery(name = "Giveaway.getAllEndingBefore", query = "SELECT g FROM Giveaway g WHERE g.endTime < :endTime")
+    @NamedQuery(name = "Giveaway.getAllEndingBefore", query = "SELECT g FROM Giveaway g WHERE g.endTime < :endTime"),
+    @NamedQuery(name = "Giveaway.findHosts", query = "SELECT DISTINCT g.userId FROM Giveaway g WHERE g.userId IN :ids"),
+    @NamedQuery(name = "Giveaway.getAllKeys", query = "SELECT g.messageId, g.guildId, g.channelId, g.endTime FROM Giveaway g")
+})
+@Indices({
+    @Index(members = {"guildId", "channelId"}), // also serves queries on guildId alone
+    @Index(members = {"channelId"}),
+    @Index(members = {"endTime"}),
+    @Index(members = {"userId"})
 })
 public class Giveaway
 {
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts of active giveaways per guild, per channel and in total, kept in step
+ * with creates and removes so that quota checks do not need a COUNT query.
+ * Adding or removing the same giveaway twice only counts once.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class GiveawayCounters
+{
+    private final ConcurrentHashMap<Long, long[]> giveaways = new ConcurrentHashMap<>(); // id -> {guild, channel}
+    private final ConcurrentHashMap<Long, Integer> guilds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Integer> channels = new ConcurrentHashMap<>();
+
+    public void add(long giveawayId, long guildId, long channelId)
+    {
+        if(giveaways.putIfAbsent(giveawayId, new long[]{ guildId, channelId }) != null)
+            return;
+        guilds.merge(guildId, 1, Integer::sum);
+        channels.merge(channelId, 1, Integer::sum);
+    }
+
+    public void remove(long giveawayId)
+    {
+        long[] location = giveaways.remove(giveawayId);
+        if(location == null)
+            return;
+        guilds.computeIfPresent(location[0], (id, count) -> count == 1 ? null : count - 1);
+        channels.computeIfPresent(location[1], (id, count) -> count == 1 ? null : count - 1);
+    }
+
+    public int countByGuild(long guildId)
+    {
+        return guilds.getOrDefault(guildId, 0);
+    }
+
+    public int countByChannel(long channelId)
+    {
+        return channels.getOrDefault(channelId, 0);
+    }
+
+    public int countAll()
+    {
+        return giveaways.size();
+    }
+}
@@ -20,11 +20,14 @@ import java.util.Set;
 import javax.persistence.*;
 
 /**
+ * Entries as they were stored before {@link GiveawayEntry}, as one set per
+ * giveaway. These are only read to migrate them at startup.
  *
  * @author John Grosh (john.a.grosh@gmail.com)
  */
 @Entity
 @Table(name = "GIVEAWAY_ENTRIES")
+@NamedQuery(name = "GiveawayEntries.getAllIds", query = "SELECT ge.giveawayId FROM GiveawayEntries ge")
 public class GiveawayEntries
 {
     @Id
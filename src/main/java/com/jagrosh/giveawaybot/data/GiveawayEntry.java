@@ -0,0 +1,97 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import java.io.Serializable;
+import javax.jdo.annotations.Index;
+import javax.persistence.*;
+
+/**
+ * A single user's entry into a giveaway. Entries are keyed by (giveaway, user),
+ * so joining or leaving writes one row no matter how many others have entered.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+@Entity
+@Table(name = "ENTRIES")
+@IdClass(GiveawayEntry.Key.class)
+@NamedQueries({
+    @NamedQuery(name = "GiveawayEntry.getUsers", query = "SELECT e.userId FROM GiveawayEntry e WHERE e.giveawayId = :giveawayId"),
+    @NamedQuery(name = "GiveawayEntry.countUsers", query = "SELECT COUNT(e) FROM GiveawayEntry e WHERE e.giveawayId = :giveawayId"),
+    @NamedQuery(name = "GiveawayEntry.delete", query = "DELETE FROM GiveawayEntry e WHERE e.giveawayId = :giveawayId AND e.userId = :userId"),
+    @NamedQuery(name = "GiveawayEntry.countAll", query = "SELECT COUNT(e) FROM GiveawayEntry e"),
+    @NamedQuery(name = "GiveawayEntry.countByGiveaway", query = "SELECT e.giveawayId, COUNT(e) FROM GiveawayEntry e GROUP BY e.giveawayId"),
+    @NamedQuery(name = "GiveawayEntry.findUsers", query = "SELECT DISTINCT e.userId FROM GiveawayEntry e WHERE e.userId IN :ids"),
+    @NamedQuery(name = "GiveawayEntry.deleteAll", query = "DELETE FROM GiveawayEntry e WHERE e.giveawayId = :giveawayId")
+})
+@Index(members = {"userId"})
+public class GiveawayEntry
+{
+    @Id
+    @Column(name = "GIVEAWAY_ID")
+    private long giveawayId;
+
+    @Id
+    @Column(name = "USER_ID")
+    private long userId;
+
+    public GiveawayEntry() {}
+
+    public GiveawayEntry(long giveawayId, long userId)
+    {
+        this.giveawayId = giveawayId;
+        this.userId = userId;
+    }
+
+    public long getGiveawayId()
+    {
+        return giveawayId;
+    }
+
+    public long getUserId()
+    {
+        return userId;
+    }
+
+    public static class Key implements Serializable
+    {
+        private long giveawayId;
+        private long userId;
+
+        public Key() {}
+
+        public Key(long giveawayId, long userId)
+        {
+            this.giveawayId = giveawayId;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if(!(other instanceof Key))
+                return false;
+            Key k = (Key) other;
+            return k.giveawayId == giveawayId && k.userId == userId;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Long.hashCode(giveawayId) * 31 + Long.hashCode(userId);
+        }
+    }
+}
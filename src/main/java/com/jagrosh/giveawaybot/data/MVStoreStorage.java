@@ -0,0 +1,385 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Storage in an embedded MVStore file: a key-value engine of copy-on-write
+ * B-trees. Rows are stored as {@link EntityCodec} bytes keyed by id, and each
+ * giveaway's entries are a map of their own, so removing a giveaway drops its
+ * entries in one step.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class MVStoreStorage implements Storage
+{
+    private final static int LOCK_STRIPES = 64;
+    private final static String ENTRIES_PREFIX = "entries.", SNAPSHOT_STAMP = "snapshot", USERS_MARKED = "usersMarked";
+
+    private final Logger log = LoggerFactory.getLogger(MVStoreStorage.class);
+    private final MVStore store;
+    private final MVMap<Long, byte[]> giveaways, users, settings;
+    private final MVMap<String, Long> stamps;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final ThreadLocal<Boolean> batching = ThreadLocal.withInitial(() -> false);
+
+    public MVStoreStorage(String file)
+    {
+        store = new MVStore.Builder().fileName(file).compress().open();
+        giveaways = store.openMap("giveaways");
+        users = store.openMap("users");
+        settings = store.openMap("settings");
+        stamps = store.openMap("stamps");
+        for(int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        markUnseenUsers();
+    }
+
+    @Override
+    public void close()
+    {
+        store.close();
+    }
+
+    @Override
+    public void batch(Runnable work)
+    {
+        if(batching.get())
+        {
+            work.run();
+            return;
+        }
+        batching.set(true);
+        try
+        {
+            work.run();
+        }
+        finally
+        {
+            batching.set(false);
+        }
+        store.commit();
+    }
+
+    // giveaways
+    @Override
+    public Giveaway getGiveaway(long id)
+    {
+        return EntityCodec.decodeGiveaway(giveaways.get(id));
+    }
+
+    @Override
+    public List<Giveaway> getGiveawaysByGuild(long guildId)
+    {
+        return filter(g -> g.getGuildId() == guildId);
+    }
+
+    @Override
+    public List<Giveaway> getGiveawaysByChannel(long channelId)
+    {
+        return filter(g -> g.getChannelId() == channelId);
+    }
+
+    @Override
+    public List<Giveaway> getGiveawaysEndingBefore(long endTime)
+    {
+        return filter(g -> g.getEndTime() < endTime);
+    }
+
+    @Override
+    public void scanGiveaways(GiveawayVisitor visitor)
+    {
+        giveaways.values().forEach(b ->
+        {
+            Giveaway g = EntityCodec.decodeGiveaway(b);
+            visitor.visit(g.getMessageId(), g.getGuildId(), g.getChannelId(), g.getEndTime());
+        });
+    }
+
+    @Override
+    public void saveGiveaway(Giveaway giveaway)
+    {
+        giveaways.put(giveaway.getMessageId(), EntityCodec.encode(giveaway));
+        commit();
+    }
+
+    @Override
+    public void removeGiveaway(long id)
+    {
+        giveaways.remove(id);
+        synchronized(lock(id))
+        {
+            if(store.hasMap(ENTRIES_PREFIX + id))
+                store.removeMap(entryMap(id));
+        }
+        commit();
+    }
+
+    // entries
+    @Override
+    public Collection<Long> getEntries(long giveawayId)
+    {
+        if(!store.hasMap(ENTRIES_PREFIX + giveawayId))
+            return Collections.emptyList();
+        return new ArrayList<>(entryMap(giveawayId).keySet());
+    }
+
+    @Override
+    public boolean hasEntry(long giveawayId, long userId)
+    {
+        return store.hasMap(ENTRIES_PREFIX + giveawayId) && entryMap(giveawayId).containsKey(userId);
+    }
+
+    @Override
+    public int countEntries(long giveawayId)
+    {
+        // maps keep their size, so this does not scan the entries
+        return store.hasMap(ENTRIES_PREFIX + giveawayId) ? (int) entryMap(giveawayId).sizeAsLong() : 0;
+    }
+
+    @Override
+    public void writeEntries(List<EntryRegistry.Changes> changes)
+    {
+        for(EntryRegistry.Changes c: changes)
+        {
+            synchronized(lock(c.getGiveawayId()))
+            {
+                // removed since the changes were collected; opening its map would create it again
+                if(!giveaways.containsKey(c.getGiveawayId()))
+                    continue;
+                MVMap<Long, Boolean> map = entryMap(c.getGiveawayId());
+                c.getAdded().forEach(u -> map.put(u, Boolean.TRUE));
+                c.getRemoved().forEach(u -> map.remove(u));
+            }
+        }
+        commit();
+    }
+
+    // users
+    @Override
+    public CachedUser getUser(long userId)
+    {
+        return EntityCodec.decodeUser(users.get(userId));
+    }
+
+    @Override
+    public void streamUsers(long[] userIds, Consumer<CachedUser> consumer)
+    {
+        Arrays.stream(userIds)
+                .mapToObj(u -> EntityCodec.decodeUser(users.get(u)))
+                .filter(Objects::nonNull)
+                .forEachOrdered(consumer);
+    }
+
+    @Override
+    public void updateUser(long userId, Consumer<CachedUser> update)
+    {
+        applyUser(userId, update);
+        commit();
+    }
+
+    @Override
+    public void updateUsers(Map<Long, Consumer<CachedUser>> updates)
+    {
+        updates.forEach(this::applyUser);
+        commit();
+    }
+
+    @Override
+    public List<CachedUser> getPremiumUsers()
+    {
+        return users.values().stream()
+                .map(EntityCodec::decodeUser)
+                .filter(u -> u.getPremiumLevel().level > 0)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<CachedUser> getStaleUsers(long seenBefore, int limit)
+    {
+        return users.values().stream()
+                .map(EntityCodec::decodeUser)
+                .filter(u -> isStale(u, seenBefore))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Set<Long> getReferencedUsers(long[] userIds)
+    {
+        Set<Long> remaining = Arrays.stream(userIds).boxed().collect(Collectors.toSet());
+        Set<Long> referenced = new HashSet<>();
+        giveaways.values().forEach(b ->
+        {
+            long host = EntityCodec.decodeGiveaway(b).getUserId();
+            if(remaining.remove(host))
+                referenced.add(host);
+        });
+        for(Long giveawayId: giveaways.keySet())
+        {
+            if(remaining.isEmpty())
+                break;
+            if(!store.hasMap(ENTRIES_PREFIX + giveawayId))
+                continue;
+            MVMap<Long, Boolean> map = entryMap(giveawayId);
+            for(Iterator<Long> it = remaining.iterator(); it.hasNext(); )
+            {
+                Long userId = it.next();
+                if(map.containsKey(userId))
+                {
+                    referenced.add(userId);
+                    it.remove();
+                }
+            }
+        }
+        return referenced;
+    }
+
+    @Override
+    public long[] removeStaleUsers(long[] userIds, long seenBefore)
+    {
+        long[] removed = Arrays.stream(userIds).filter(id ->
+        {
+            synchronized(lock(id))
+            {
+                CachedUser u = EntityCodec.decodeUser(users.get(id));
+                return u != null && isStale(u, seenBefore) && users.remove(id) != null;
+            }
+        }).toArray();
+        commit();
+        return removed;
+    }
+
+    // settings
+    @Override
+    public GuildSettings getSettings(long guildId)
+    {
+        return EntityCodec.decodeSettings(settings.get(guildId));
+    }
+
+    @Override
+    public GuildSettings updateSettings(long guildId, Consumer<GuildSettings> update)
+    {
+        GuildSettings gs;
+        synchronized(lock(guildId))
+        {
+            gs = EntityCodec.decodeSettings(settings.get(guildId));
+            if(gs == null)
+                gs = new GuildSettings(guildId);
+            update.accept(gs);
+            settings.put(guildId, EntityCodec.encode(gs));
+        }
+        commit();
+        return gs;
+    }
+
+    private void applyUser(long userId, Consumer<CachedUser> update)
+    {
+        synchronized(lock(userId))
+        {
+            CachedUser u = EntityCodec.decodeUser(users.get(userId));
+            if(u == null)
+            {
+                u = new CachedUser();
+                u.setId(userId);
+            }
+            update.accept(u);
+            users.put(userId, EntityCodec.encode(u));
+        }
+    }
+
+    // snapshot
+    @Override
+    public long getSnapshotStamp()
+    {
+        return stamps.getOrDefault(SNAPSHOT_STAMP, 0L);
+    }
+
+    @Override
+    public void setSnapshotStamp(long stamp)
+    {
+        stamps.put(SNAPSHOT_STAMP, stamp);
+        commit();
+    }
+
+    private static boolean isStale(CachedUser u, long seenBefore)
+    {
+        long seen = u.getLastSeen().getEpochSecond();
+        return seen > 0 && seen < seenBefore && u.getPremiumLevel().level == 0;
+    }
+
+    // users stored before last seen times were kept count as seen now, so that
+    // they are only removed if they are not seen again for a while; done once,
+    // since every write of a user since sets the time
+    private void markUnseenUsers()
+    {
+        if(stamps.containsKey(USERS_MARKED))
+            return;
+        Instant now = Instant.now();
+        int marked = 0;
+        for(Long userId: users.keySet())
+        {
+            synchronized(lock(userId))
+            {
+                CachedUser u = EntityCodec.decodeUser(users.get(userId));
+                if(u == null || u.getLastSeen().getEpochSecond() > 0)
+                    continue;
+                u.setLastSeen(now);
+                users.put(userId, EntityCodec.encode(u));
+                marked++;
+            }
+        }
+        stamps.put(USERS_MARKED, now.getEpochSecond());
+        store.commit();
+        if(marked > 0)
+            log.info(String.format("Marked %d users as seen now", marked));
+    }
+
+    private MVMap<Long, Boolean> entryMap(long giveawayId)
+    {
+        return store.openMap(ENTRIES_PREFIX + giveawayId);
+    }
+
+    private List<Giveaway> filter(Predicate<Giveaway> predicate)
+    {
+        return giveaways.values().stream()
+                .map(EntityCodec::decodeGiveaway)
+                .filter(predicate)
+                .collect(Collectors.toList());
+    }
+
+    private void commit()
+    {
+        // a batch commits once, at its end
+        if(!batching.get())
+            store.commit();
+    }
+
+    // read-modify-write updates are serialized per key
+    private Object lock(long id)
+    {
+        return locks[(int) ((id ^ (id >>> 32)) & (LOCK_STRIPES - 1))];
+    }
+}
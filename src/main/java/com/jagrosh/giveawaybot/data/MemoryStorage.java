@@ -0,0 +1,228 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Storage that only lives in memory, for tests and as a baseline when comparing
+ * engines. Stored objects are returned as-is, so callers must not modify them.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class MemoryStorage implements Storage
+{
+    private final Map<Long, Giveaway> giveaways = new ConcurrentHashMap<>();
+    private final Map<Long, Set<Long>> entries = new ConcurrentHashMap<>();
+    private final Map<Long, CachedUser> users = new ConcurrentHashMap<>();
+    private final Map<Long, GuildSettings> settings = new ConcurrentHashMap<>();
+    private volatile long snapshotStamp = 0L;
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void batch(Runnable work)
+    {
+        work.run();
+    }
+
+    // giveaways
+    @Override
+    public Giveaway getGiveaway(long id)
+    {
+        return giveaways.get(id);
+    }
+
+    @Override
+    public List<Giveaway> getGiveawaysByGuild(long guildId)
+    {
+        return filter(g -> g.getGuildId() == guildId);
+    }
+
+    @Override
+    public List<Giveaway> getGiveawaysByChannel(long channelId)
+    {
+        return filter(g -> g.getChannelId() == channelId);
+    }
+
+    @Override
+    public List<Giveaway> getGiveawaysEndingBefore(long endTime)
+    {
+        return filter(g -> g.getEndTime() < endTime);
+    }
+
+    @Override
+    public void scanGiveaways(GiveawayVisitor visitor)
+    {
+        giveaways.values().forEach(g -> visitor.visit(g.getMessageId(), g.getGuildId(), g.getChannelId(), g.getEndTime()));
+    }
+
+    @Override
+    public void saveGiveaway(Giveaway giveaway)
+    {
+        giveaways.put(giveaway.getMessageId(), giveaway);
+    }
+
+    @Override
+    public void removeGiveaway(long id)
+    {
+        giveaways.remove(id);
+        entries.remove(id);
+    }
+
+    // entries
+    @Override
+    public Collection<Long> getEntries(long giveawayId)
+    {
+        Set<Long> set = entries.get(giveawayId);
+        return set == null ? Collections.emptyList() : new ArrayList<>(set);
+    }
+
+    @Override
+    public boolean hasEntry(long giveawayId, long userId)
+    {
+        Set<Long> set = entries.get(giveawayId);
+        return set != null && set.contains(userId);
+    }
+
+    @Override
+    public int countEntries(long giveawayId)
+    {
+        Set<Long> set = entries.get(giveawayId);
+        return set == null ? 0 : set.size();
+    }
+
+    @Override
+    public void writeEntries(List<EntryRegistry.Changes> changes)
+    {
+        for(EntryRegistry.Changes c: changes)
+        {
+            Set<Long> set = entries.computeIfAbsent(c.getGiveawayId(), id -> ConcurrentHashMap.newKeySet());
+            c.getAdded().forEach(set::add);
+            c.getRemoved().forEach(set::remove);
+        }
+    }
+
+    // users
+    @Override
+    public CachedUser getUser(long userId)
+    {
+        return users.get(userId);
+    }
+
+    @Override
+    public void streamUsers(long[] userIds, Consumer<CachedUser> consumer)
+    {
+        Arrays.stream(userIds).mapToObj(users::get).filter(Objects::nonNull).forEachOrdered(consumer);
+    }
+
+    @Override
+    public void updateUser(long userId, Consumer<CachedUser> update)
+    {
+        users.compute(userId, (id, u) ->
+        {
+            if(u == null)
+            {
+                u = new CachedUser();
+                u.setId(id);
+            }
+            update.accept(u);
+            return u;
+        });
+    }
+
+    @Override
+    public void updateUsers(Map<Long, Consumer<CachedUser>> updates)
+    {
+        updates.forEach(this::updateUser);
+    }
+
+    @Override
+    public List<CachedUser> getPremiumUsers()
+    {
+        return users.values().stream().filter(u -> u.getPremiumLevel().level > 0).collect(Collectors.toList());
+    }
+
+    @Override
+    public List<CachedUser> getStaleUsers(long seenBefore, int limit)
+    {
+        return users.values().stream().filter(u -> isStale(u, seenBefore)).limit(limit).collect(Collectors.toList());
+    }
+
+    @Override
+    public Set<Long> getReferencedUsers(long[] userIds)
+    {
+        Set<Long> referenced = new HashSet<>();
+        for(long id: userIds)
+            if(giveaways.values().stream().anyMatch(g -> g.getUserId() == id) || entries.values().stream().anyMatch(e -> e.contains(id)))
+                referenced.add(id);
+        return referenced;
+    }
+
+    @Override
+    public long[] removeStaleUsers(long[] userIds, long seenBefore)
+    {
+        return Arrays.stream(userIds).filter(id -> users.computeIfPresent(id, (i, u) -> isStale(u, seenBefore) ? null : u) == null).toArray();
+    }
+
+    // settings
+    @Override
+    public GuildSettings getSettings(long guildId)
+    {
+        return settings.get(guildId);
+    }
+
+    @Override
+    public GuildSettings updateSettings(long guildId, Consumer<GuildSettings> update)
+    {
+        // copied on write, since the returned settings may be cached and shared
+        return settings.compute(guildId, (id, gs) ->
+        {
+            GuildSettings updated = gs == null ? new GuildSettings(id) : EntityCodec.decodeSettings(EntityCodec.encode(gs));
+            update.accept(updated);
+            return updated;
+        });
+    }
+
+    // snapshot
+    @Override
+    public long getSnapshotStamp()
+    {
+        return snapshotStamp;
+    }
+
+    @Override
+    public void setSnapshotStamp(long stamp)
+    {
+        snapshotStamp = stamp;
+    }
+
+    private static boolean isStale(CachedUser u, long seenBefore)
+    {
+        long seen = u.getLastSeen().getEpochSecond();
+        return seen > 0 && seen < seenBefore && u.getPremiumLevel().level == 0;
+    }
+
+    private List<Giveaway> filter(Predicate<Giveaway> predicate)
+    {
+        return giveaways.values().stream().filter(predicate).collect(Collectors.toList());
+    }
+}
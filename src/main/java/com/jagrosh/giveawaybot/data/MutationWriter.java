@@ -0,0 +1,250 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes mutations to storage, from one thread per partition of the storage.
+ * Whatever has queued up for a partition while its previous commit ran is
+ * written as one batch (group commit), and each mutation's in-memory effect is
+ * applied once its batch has committed. If a batch fails, its mutations are
+ * retried one at a time, so that one bad mutation only fails its own caller.
+ * Mutations of the same partition are written in the order they were made.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class MutationWriter
+{
+    public enum Durability
+    {
+        SYNC,  // written on the caller's thread, one transaction each
+        GROUP, // written in batches; the caller waits for its batch to commit
+        ASYNC  // written in batches; the caller does not wait
+    }
+
+    private final static int MAX_BATCH_SIZE = 1000;
+    private final static Mutation<?> STOP = new Mutation<>(null, null);
+
+    private final Logger log = LoggerFactory.getLogger(MutationWriter.class);
+    private final Storage storage;
+    private final Consumer<Runnable> guard;
+    private final Durability durability;
+    private final Lane[] lanes;
+    private final LongAdder mutations = new LongAdder(), commits = new LongAdder();
+
+    private boolean closed = false; // guarded by lanes, so nothing is queued after STOP
+
+    /**
+     * @param storage where mutations are written
+     * @param guard runs each write together with the in-memory effects of it
+     * @param durability when callers return
+     */
+    public MutationWriter(Storage storage, Consumer<Runnable> guard, Durability durability)
+    {
+        this.storage = storage;
+        this.guard = guard;
+        this.durability = durability;
+        lanes = new Lane[durability == Durability.SYNC ? 0 : storage.countPartitions()];
+        for(int i = 0; i < lanes.length; i++)
+            lanes[i] = new Lane(storage.getPartition(i), lanes.length == 1 ? "mutation-writer" : "mutation-writer-" + i);
+    }
+
+    /**
+     * Writes a mutation, and then applies its effect to in-memory state
+     *
+     * @param <T> the result of the write
+     * @param key the guild or user whose data the write changes, which picks
+     * the partition it is written with
+     * @param write the change to storage
+     * @param effect the change to in-memory state, given the result of the write
+     */
+    public <T> void write(long key, Function<Storage, T> write, Consumer<T> effect)
+    {
+        Mutation<T> mutation = new Mutation<>(write, effect);
+        if(durability == Durability.SYNC)
+        {
+            guard.accept(() -> mutation.effect.accept(mutation.write.apply(storage)));
+            mutations.increment();
+            commits.increment();
+            return;
+        }
+        synchronized(lanes)
+        {
+            if(closed)
+                throw new IllegalStateException("Writer is closed");
+            lanes[storage.partitionOf(key)].queue.add(mutation);
+        }
+        if(durability == Durability.GROUP)
+            join(mutation.future);
+    }
+
+    public String getStats()
+    {
+        long m = mutations.sum(), c = commits.sum();
+        int queued = 0;
+        for(Lane lane: lanes)
+            queued += lane.queue.size();
+        return String.format("%d in %d commits (%.1f per commit), %d queued", m, c, c == 0 ? 0.0 : (double) m / c, queued);
+    }
+
+    /**
+     * Writes everything still queued, and stops the writer threads
+     */
+    public void close()
+    {
+        synchronized(lanes)
+        {
+            if(closed)
+                return;
+            closed = true;
+            for(Lane lane: lanes)
+                lane.queue.add(STOP);
+        }
+        for(Lane lane: lanes)
+        {
+            try
+            {
+                lane.thread.join();
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void commit(Storage partition, List<Mutation<?>> batch)
+    {
+        try
+        {
+            // written through the whole storage, which sends them to this partition's batch
+            guard.accept(() ->
+            {
+                partition.batch(() -> batch.forEach(m -> m.writeTo(storage)));
+                batch.forEach(m -> m.applyEffect(log));
+            });
+            mutations.add(batch.size());
+            commits.increment();
+        }
+        catch(RuntimeException ex)
+        {
+            if(batch.size() == 1)
+            {
+                log.error("Failed to write mutation: ", ex);
+                batch.get(0).future.completeExceptionally(ex);
+                return;
+            }
+            log.warn(String.format("Batch of %d mutations failed, retrying individually: %s", batch.size(), ex));
+            batch.forEach(m -> commit(partition, Collections.singletonList(m)));
+            return;
+        }
+        batch.forEach(m -> m.future.complete(null));
+    }
+
+    private static void join(CompletableFuture<Void> future)
+    {
+        try
+        {
+            future.join();
+        }
+        catch(CompletionException ex)
+        {
+            if(ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw ex;
+        }
+    }
+
+    private class Lane
+    {
+        private final Storage partition;
+        private final BlockingQueue<Mutation<?>> queue = new LinkedBlockingQueue<>();
+        private final Thread thread;
+
+        private Lane(Storage partition, String name)
+        {
+            this.partition = partition;
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void run()
+        {
+            List<Mutation<?>> batch = new ArrayList<>();
+            boolean stopping = false;
+            while(!stopping)
+            {
+                try
+                {
+                    batch.add(queue.take());
+                }
+                catch(InterruptedException ex)
+                {
+                    continue;
+                }
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                stopping = batch.remove(STOP);
+                if(!batch.isEmpty())
+                    commit(partition, batch);
+                batch.clear();
+            }
+        }
+    }
+    private static class Mutation<T>
+    {
+        private final Function<Storage, T> write;
+        private final Consumer<T> effect;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private T result;
+
+        private Mutation(Function<Storage, T> write, Consumer<T> effect)
+        {
+            this.write = write;
+            this.effect = effect;
+        }
+
+        private void writeTo(Storage storage)
+        {
+            result = write.apply(storage);
+        }
+
+        private void applyEffect(Logger log)
+        {
+            // already committed, so a failure here must not fail the batch
+            try
+            {
+                effect.accept(result);
+            }
+            catch(RuntimeException ex)
+            {
+                log.error("Failed to apply mutation: ", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Storage in ObjectDB, through JPA
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class ObjectDbStorage implements Storage
+{
+    public final static int DEFAULT_POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private final static int LOCK_STRIPES = 64, MIGRATION_BATCH_SIZE = 10000, USER_BATCH_SIZE = 1000,
+                             CONTEXT_LIMIT = 5000; // entities managed at once by one long unit of work
+
+    private final Logger log = LoggerFactory.getLogger(ObjectDbStorage.class);
+    private final EntityManagerFactory emf;
+    private final EntityManagerPool pool;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    // stripes taken inside a batch on this thread, which are held until it commits
+    private final ThreadLocal<List<ReentrantLock>> batchStripes = new ThreadLocal<>();
+
+    public ObjectDbStorage(String host, String user, String pass, int poolSize)
+    {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("javax.persistence.jdbc.user", user);
+        properties.put("javax.persistence.jdbc.password", pass);
+        emf = Persistence.createEntityManagerFactory(host, properties);
+        pool = new EntityManagerPool(emf, poolSize);
+        pool.call(em ->
+        {
+            em.getMetamodel().managedType(CachedUser.class);
+            em.getMetamodel().managedType(Giveaway.class);
+            em.getMetamodel().managedType(GiveawayEntries.class);
+            em.getMetamodel().managedType(GiveawayEntry.class);
+            em.getMetamodel().managedType(EntryCount.class);
+            em.getMetamodel().managedType(GuildSettings.class);
+            em.getMetamodel().managedType(SnapshotStamp.class);
+            return null;
+        });
+        for(int i = 0; i < locks.length; i++)
+            locks[i] = new ReentrantLock();
+        migrateLegacyEntries();
+        migrateEntryCounts();
+        markUnseenUsers();
+    }
+
+    @Override
+    public void close()
+    {
+        pool.close();
+        emf.close();
+    }
+
+    @Override
+    public void batch(Runnable work)
+    {
+        // nested calls on this thread join the transaction
+        if(batchStripes.get() != null)
+        {
+            work.run();
+            return;
+        }
+        List<ReentrantLock> held = new ArrayList<>();
+        batchStripes.set(held);
+        try
+        {
+            pool.execute(em -> work.run());
+        }
+        finally
+        {
+            batchStripes.remove();
+            held.forEach(ReentrantLock::unlock);
+        }
+    }
+
+    // giveaways
+    @Override
+    public Giveaway getGiveaway(long id)
+    {
+        return pool.call(em -> em.find(Giveaway.class, id));
+    }
+
+    @Override
+    public List<Giveaway> getGiveawaysByGuild(long guildId)
+    {
+        return pool.call(em -> em.createNamedQuery("Giveaway.getAllFromGuild", Giveaway.class).setParameter("guildId", guildId).getResultList());
+    }
+
+    @Override
+    public List<Giveaway> getGiveawaysByChannel(long channelId)
+    {
+        return pool.call(em -> em.createNamedQuery("Giveaway.getAllFromChannel", Giveaway.class).setParameter("channelId", channelId).getResultList());
+    }
+
+    @Override
+    public List<Giveaway> getGiveawaysEndingBefore(long endTime)
+    {
+        return pool.call(em -> em.createNamedQuery("Giveaway.getAllEndingBefore", Giveaway.class).setParameter("endTime", endTime).getResultList());
+    }
+
+    @Override
+    public void scanGiveaways(GiveawayVisitor visitor)
+    {
+        pool.call(em -> em.createNamedQuery("Giveaway.getAllKeys", Object[].class).getResultList())
+                .forEach(row -> visitor.visit((Long) row[0], (Long) row[1], (Long) row[2], (Long) row[3]));
+    }
+
+    @Override
+    public void saveGiveaway(Giveaway giveaway)
+    {
+        // merged rather than persisted, so that a retried batch can save it again
+        pool.execute(em -> em.merge(giveaway));
+    }
+
+    @Override
+    public void removeGiveaway(long id)
+    {
+        pool.execute(em ->
+        {
+            Giveaway g = em.find(Giveaway.class, id);
+            if(g != null)
+                em.remove(g);
+            em.createNamedQuery("GiveawayEntry.deleteAll").setParameter("giveawayId", id).executeUpdate();
+            em.createNamedQuery("EntryCount.delete").setParameter("giveawayId", id).executeUpdate();
+        });
+    }
+
+    // entries
+    @Override
+    public Collection<Long> getEntries(long giveawayId)
+    {
+        return pool.call(em -> em.createNamedQuery("GiveawayEntry.getUsers", Long.class)
+                .setParameter("giveawayId", giveawayId).getResultList());
+    }
+
+    @Override
+    public boolean hasEntry(long giveawayId, long userId)
+    {
+        return pool.call(em -> em.find(GiveawayEntry.class, new GiveawayEntry.Key(giveawayId, userId)) != null);
+    }
+
+    @Override
+    public int countEntries(long giveawayId)
+    {
+        EntryCount c = pool.call(em -> em.find(EntryCount.class, giveawayId));
+        return c == null ? 0 : c.getCount();
+    }
+
+    @Override
+    public void writeEntries(List<EntryRegistry.Changes> changes)
+    {
+        pool.execute(em ->
+        {
+            int[] done = { 0 };
+            for(EntryRegistry.Changes c: changes)
+            {
+                // the giveaway may have been removed since the changes were collected
+                if(em.find(Giveaway.class, c.getGiveawayId()) == null)
+                    continue;
+                int[] delta = { 0 };
+                c.getAdded().forEach(u -> 
+                {
+                    if(em.find(GiveawayEntry.class, new GiveawayEntry.Key(c.getGiveawayId(), u)) == null)
+                    {
+                        em.persist(new GiveawayEntry(c.getGiveawayId(), u));
+                        delta[0]++;
+                    }
+                    limitContext(em, ++done[0]);
+                });
+                c.getRemoved().forEach(u -> delta[0] -= em.createNamedQuery("GiveawayEntry.delete")
+                        .setParameter("giveawayId", c.getGiveawayId()).setParameter("userId", u).executeUpdate());
+                if(delta[0] == 0)
+                    continue;
+                EntryCount count = em.find(EntryCount.class, c.getGiveawayId());
+                if(count == null)
+                    em.persist(new EntryCount(c.getGiveawayId(), delta[0]));
+                else
+                    count.add(delta[0]);
+            }
+        });
+    }
+
+    // users
+    @Override
+    public CachedUser getUser(long userId)
+    {
+        return pool.call(em -> em.find(CachedUser.class, userId));
+    }
+
+    @Override
+    public void streamUsers(long[] userIds, Consumer<CachedUser> consumer)
+    {
+        // one IN query per batch instead of one lookup per user; the results
+        // come back in no particular order, so they are put back in id order
+        for(int from = 0; from < userIds.length; from += USER_BATCH_SIZE)
+        {
+            long[] batch = Arrays.copyOfRange(userIds, from, Math.min(userIds.length, from + USER_BATCH_SIZE));
+            List<Long> ids = Arrays.stream(batch).boxed().collect(Collectors.toList());
+            Map<Long, CachedUser> found = new HashMap<>();
+            pool.call(em -> em.createNamedQuery("CachedUser.findByIds", CachedUser.class)
+                    .setParameter("ids", ids).getResultList())
+                    .forEach(u -> found.put(u.getId(), u));
+            for(long id: batch)
+            {
+                CachedUser u = found.get(id);
+                if(u != null)
+                    consumer.accept(u);
+            }
+        }
+    }
+
+    @Override
+    public void updateUser(long userId, Consumer<CachedUser> update)
+    {
+        withStripe(userId, () -> pool.transaction(em ->
+        {
+            CachedUser u = em.find(CachedUser.class, userId);
+            if(u == null)
+            {
+                u = new CachedUser();
+                u.setId(userId);
+                em.persist(u);
+            }
+            update.accept(u);
+            return null;
+        }));
+    }
+
+    @Override
+    public void updateUsers(Map<Long, Consumer<CachedUser>> updates)
+    {
+        lockStripes(updates.keySet());
+        try
+        {
+            pool.execute(em -> 
+            {
+                int[] done = { 0 };
+                updates.forEach((userId, update) -> 
+                {
+                    CachedUser u = em.find(CachedUser.class, userId);
+                    if(u == null)
+                    {
+                        u = new CachedUser();
+                        u.setId(userId);
+                        em.persist(u);
+                    }
+                    update.accept(u);
+                    limitContext(em, ++done[0]);
+                });
+            });
+            return;
+        }
+        catch(PersistenceException ex)
+        {
+            log.warn("Batched user update failed, retrying individually: " + ex);
+        }
+        finally
+        {
+            unlockStripes(updates.keySet());
+        }
+        // retry them one by one, so that one bad update only fails itself
+        updates.forEach(this::updateUser);
+    }
+
+    @Override
+    public List<CachedUser> getPremiumUsers()
+    {
+        return pool.call(em -> em.createNamedQuery("CachedUser.findAllWithPremium", CachedUser.class).getResultList());
+    }
+
+    @Override
+    public List<CachedUser> getStaleUsers(long seenBefore, int limit)
+    {
+        return pool.call(em -> em.createNamedQuery("CachedUser.findStale", CachedUser.class)
+                .setParameter("seenBefore", seenBefore).setMaxResults(limit).getResultList());
+    }
+
+    @Override
+    public Set<Long> getReferencedUsers(long[] userIds)
+    {
+        List<Long> ids = Arrays.stream(userIds).boxed().collect(Collectors.toList());
+        Set<Long> referenced = new HashSet<>();
+        pool.call(em ->
+        {
+            // a thousand ids at a time, to keep the IN lists small
+            for(int from = 0; from < ids.size(); from += USER_BATCH_SIZE)
+            {
+                List<Long> batch = ids.subList(from, Math.min(ids.size(), from + USER_BATCH_SIZE));
+                referenced.addAll(em.createNamedQuery("Giveaway.findHosts", Long.class).setParameter("ids", batch).getResultList());
+                referenced.addAll(em.createNamedQuery("GiveawayEntry.findUsers", Long.class).setParameter("ids", batch).getResultList());
+            }
+            return null;
+        });
+        return referenced;
+    }
+
+    @Override
+    public long[] removeStaleUsers(long[] userIds, long seenBefore)
+    {
+        List<Long> ids = Arrays.stream(userIds).boxed().collect(Collectors.toList());
+        List<Long> removed = pool.transaction(em ->
+        {
+            List<Long> stale = em.createNamedQuery("CachedUser.findStaleIds", Long.class)
+                    .setParameter("ids", ids).setParameter("seenBefore", seenBefore).getResultList();
+            if(!stale.isEmpty())
+                em.createNamedQuery("CachedUser.deleteIds").setParameter("ids", stale).executeUpdate();
+            return stale;
+        });
+        return removed.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    // settings
+    @Override
+    public GuildSettings getSettings(long guildId)
+    {
+        return pool.call(em -> em.find(GuildSettings.class, guildId));
+    }
+
+    @Override
+    public GuildSettings updateSettings(long guildId, Consumer<GuildSettings> update)
+    {
+        // detached once the EntityManager is released
+        return withStripe(guildId, () -> pool.transaction(em ->
+        {
+            GuildSettings gs = em.find(GuildSettings.class, guildId);
+            if(gs == null)
+            {
+                gs = new GuildSettings(guildId);
+                em.persist(gs);
+            }
+            update.accept(gs);
+            return gs;
+        }));
+    }
+
+    // snapshot
+    @Override
+    public long getSnapshotStamp()
+    {
+        SnapshotStamp s = pool.call(em -> em.find(SnapshotStamp.class, SnapshotStamp.ID));
+        return s == null ? 0L : s.getStamp();
+    }
+
+    @Override
+    public void setSnapshotStamp(long stamp)
+    {
+        pool.execute(em -> em.merge(new SnapshotStamp(stamp)));
+    }
+
+    // moves entries stored as one GIVEAWAY_ENTRIES set per giveaway into one ENTRIES row per
+    // entry; this is safe to re-run if interrupted, as rows are merged before the set is removed
+    private void migrateLegacyEntries()
+    {
+        List<Long> legacy = pool.call(em -> em.createNamedQuery("GiveawayEntries.getAllIds", Long.class).getResultList());
+        if(legacy.isEmpty())
+            return;
+        log.info(String.format("Migrating entries for %d giveaways", legacy.size()));
+        for(long giveawayId: legacy)
+        {
+            GiveawayEntries ge = pool.call(em -> em.find(GiveawayEntries.class, giveawayId));
+            if(ge == null)
+                continue;
+            List<Long> users = new ArrayList<>(ge.getUsers());
+            for(int i = 0; i < users.size(); i += MIGRATION_BATCH_SIZE)
+            {
+                List<Long> batch = users.subList(i, Math.min(users.size(), i + MIGRATION_BATCH_SIZE));
+                pool.execute(em -> batch.forEach(u -> em.merge(new GiveawayEntry(giveawayId, u))));
+            }
+            pool.execute(em ->
+            {
+                GiveawayEntries old = em.find(GiveawayEntries.class, giveawayId);
+                if(old != null)
+                    em.remove(old);
+            });
+        }
+        log.info("Finished migrating entries");
+    }
+
+    // counts the entries of every giveaway once, when entry counts are first kept
+    private void migrateEntryCounts()
+    {
+        boolean needed = pool.call(em -> em.createNamedQuery("EntryCount.countAll", Long.class).getSingleResult() == 0L
+                && em.createNamedQuery("GiveawayEntry.countAll", Long.class).getSingleResult() > 0L);
+        if(!needed)
+            return;
+        List<Object[]> counts = pool.call(em -> em.createNamedQuery("GiveawayEntry.countByGiveaway", Object[].class).getResultList());
+        pool.execute(em -> counts.forEach(c -> em.persist(new EntryCount((Long) c[0], ((Long) c[1]).intValue()))));
+        log.info(String.format("Counted entries for %d giveaways", counts.size()));
+    }
+
+    // users stored before last seen times were kept count as seen now, so
+    // that they are only removed if they are not seen again for a while
+    private void markUnseenUsers()
+    {
+        int marked = pool.transaction(em -> em.createNamedQuery("CachedUser.markUnseen")
+                .setParameter("now", Instant.now().getEpochSecond()).executeUpdate());
+        if(marked > 0)
+            log.info(String.format("Marked %d users as seen now", marked));
+    }
+
+    // writes what is pending and detaches everything every so often, so that a
+    // large batch does not keep every entity it touched until it commits
+    private static void limitContext(EntityManager em, int done)
+    {
+        if(done % CONTEXT_LIMIT == 0)
+        {
+            em.flush();
+            em.clear();
+        }
+    }
+
+    // writes that may create a row are serialized per key until they commit, so two
+    // threads holding different EntityManagers cannot both insert the same id
+    private ReentrantLock lock(long id)
+    {
+        return locks[(int) ((id ^ (id >>> 32)) & (LOCK_STRIPES - 1))];
+    }
+
+    private <T> T withStripe(long id, Supplier<T> write)
+    {
+        ReentrantLock stripe = lock(id);
+        stripe.lock();
+        List<ReentrantLock> held = batchStripes.get();
+        if(held != null)
+        {
+            // released when the batch commits
+            held.add(stripe);
+            return write.get();
+        }
+        try
+        {
+            return write.get();
+        }
+        finally
+        {
+            stripe.unlock();
+        }
+    }
+
+    // takes the stripes of many ids at once; a batch takes its stripes in no particular
+    // order, so this never waits while holding some, and tries again until it gets all
+    private void lockStripes(Collection<Long> ids)
+    {
+        List<ReentrantLock> stripes = stripesOf(ids);
+        while(true)
+        {
+            int taken = 0;
+            while(taken < stripes.size() && stripes.get(taken).tryLock())
+                taken++;
+            if(taken == stripes.size())
+                return;
+            for(int i = 0; i < taken; i++)
+                stripes.get(i).unlock();
+            try
+            {
+                Thread.sleep(1);
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new PersistenceException("Interrupted while waiting to write users", ex);
+            }
+        }
+    }
+
+    private void unlockStripes(Collection<Long> ids)
+    {
+        List<ReentrantLock> held = batchStripes.get();
+        if(held != null)
+            held.addAll(stripesOf(ids)); // released when the batch commits
+        else
+            stripesOf(ids).forEach(ReentrantLock::unlock);
+    }
+
+    private List<ReentrantLock> stripesOf(Collection<Long> ids)
+    {
+        Set<ReentrantLock> stripes = new LinkedHashSet<>();
+        ids.forEach(id -> stripes.add(lock(id)));
+        return new ArrayList<>(stripes);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import com.jagrosh.giveawaybot.util.BoundedCache;
+import com.jagrosh.interactions.entities.WebLocale;
+import java.awt.Color;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongFunction;
+
+/**
+ * Read-through cache of guild settings. Writers replace a guild's settings with
+ * the stored result of their update; a read that started loading before some
+ * write finished does not cache what it loaded, so a stale row can never
+ * overwrite a newer one. Guilds without settings share one read-only default.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class SettingsCache
+{
+    public final static GuildSettings DEFAULT = new DefaultSettings();
+
+    private final BoundedCache<Long, GuildSettings> cache;
+    private final Object lock = new Object();
+    private long version = 0; // guarded by lock
+
+    public SettingsCache(int maximum)
+    {
+        this.cache = new BoundedCache<>(maximum, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param guildId the guild
+     * @param loader reads the stored settings; returns null if there are none
+     * @return the guild's settings, or {@link #DEFAULT}; never null
+     */
+    public GuildSettings get(long guildId, LongFunction<GuildSettings> loader)
+    {
+        GuildSettings gs = cache.getIfPresent(guildId);
+        if(gs != null)
+            return gs;
+        long loadedAt;
+        synchronized(lock)
+        {
+            loadedAt = version;
+        }
+        GuildSettings loaded = loader.apply(guildId);
+        gs = loaded == null ? DEFAULT : loaded;
+        synchronized(lock)
+        {
+            if(version == loadedAt)
+                cache.put(guildId, gs);
+        }
+        return gs;
+    }
+
+    /**
+     * @param guildId the guild
+     * @param updated the settings as stored after an update
+     */
+    public void update(long guildId, GuildSettings updated)
+    {
+        synchronized(lock)
+        {
+            version++;
+            cache.put(guildId, updated);
+        }
+    }
+
+    public void forEach(BiConsumer<Long, GuildSettings> consumer)
+    {
+        cache.forEach(consumer);
+    }
+
+    public BoundedCache.Stats getStats()
+    {
+        return cache.getStats();
+    }
+
+    private static class DefaultSettings extends GuildSettings
+    {
+        @Override
+        public void setGuildId(long guildId)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setColorVal(int color)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setColor(Color color)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setEmoji(String emoji)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setOwnerId(long ownerId)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setLocale(WebLocale locale)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setLatestRetrieval(Instant time)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Storage spread over several independent engines, each with its own file and
+ * locks. Giveaways and settings are placed by a hash of their guild, and users
+ * by a hash of their id, so the shard count must not change without moving the
+ * data. Giveaways are looked up by message id through an in-memory index of
+ * which shard holds each one, built when the storage is opened.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class ShardedStorage implements Storage
+{
+    private final static int USER_BATCH_SIZE = 1000;
+
+    private final Storage[] shards;
+    private final Map<Long, Integer> giveawayShards = new ConcurrentHashMap<>();
+    private final ExecutorService fanout;
+
+    public ShardedStorage(Storage... shards)
+    {
+        if(shards.length == 0)
+            throw new IllegalArgumentException("At least one shard is required");
+        this.shards = shards;
+        this.fanout = Executors.newFixedThreadPool(shards.length);
+        for(int i = 0; i < shards.length; i++)
+        {
+            int shard = i;
+            shards[i].scanGiveaways((messageId, guildId, channelId, endTime) -> giveawayShards.put(messageId, shard));
+        }
+    }
+
+    /**
+     * Names the file of one shard, by adding the shard number to the file name
+     * given for the whole database
+     *
+     * @param name the database url or file
+     * @param shard the shard number
+     * @return the url or file of the shard
+     */
+    public static String shardName(String name, int shard)
+    {
+        int file = name.lastIndexOf('/') + 1;
+        int extension = name.indexOf('.', file);
+        return extension < 0
+                ? name + "-" + shard
+                : name.substring(0, extension) + "-" + shard + name.substring(extension);
+    }
+
+    @Override
+    public void close()
+    {
+        fanout.shutdown();
+        for(Storage s: shards)
+            s.close();
+    }
+
+    @Override
+    public void batch(Runnable work)
+    {
+        // one transaction per shard, committed one after another, so this is not
+        // atomic across shards; writers batch each shard on its own instead
+        batch(0, work);
+    }
+
+    @Override
+    public int countPartitions()
+    {
+        return shards.length;
+    }
+
+    @Override
+    public Storage getPartition(int partition)
+    {
+        return shards[partition];
+    }
+
+    @Override
+    public int partitionOf(long id)
+    {
+        return shardOf(id);
+    }
+
+    private void batch(int shard, Runnable work)
+    {
+        if(shard == shards.length)
+            work.run();
+        else
+            shards[shard].batch(() -> batch(shard + 1, work));
+    }
+
+    // giveaways
+    @Override
+    public Giveaway getGiveaway(long id)
+    {
+        Integer shard = giveawayShards.get(id);
+        return shard == null ? null : shards[shard].getGiveaway(id);
+    }
+
+    @Override
+    public List<Giveaway> getGiveawaysByGuild(long guildId)
+    {
+        return shards[shardOf(guildId)].getGiveawaysByGuild(guildId);
+    }
+
+    @Override
+    public List<Giveaway> getGiveawaysByChannel(long channelId)
+    {
+        return concat(fanOut(s -> s.getGiveawaysByChannel(channelId)));
+    }
+
+    @Override
+    public List<Giveaway> getGiveawaysEndingBefore(long endTime)
+    {
+        return concat(fanOut(s -> s.getGiveawaysEndingBefore(endTime)));
+    }
+
+    @Override
+    public void scanGiveaways(GiveawayVisitor visitor)
+    {
+        // one shard at a time, since visitors need not be thread-safe
+        for(Storage s: shards)
+            s.scanGiveaways(visitor);
+    }
+
+    @Override
+    public void saveGiveaway(Giveaway giveaway)
+    {
+        int shard = shardOf(giveaway.getGuildId());
+        shards[shard].saveGiveaway(giveaway);
+        giveawayShards.put(giveaway.getMessageId(), shard);
+    }
+
+    @Override
+    public void removeGiveaway(long id)
+    {
+        Integer shard = giveawayShards.remove(id);
+        if(shard != null)
+            shards[shard].removeGiveaway(id);
+        else
+        {
+            // not indexed, such as when retrying a remove whose batch failed
+            for(Storage s: shards)
+                s.removeGiveaway(id);
+        }
+    }
+
+    // entries
+    @Override
+    public Collection<Long> getEntries(long giveawayId)
+    {
+        Integer shard = giveawayShards.get(giveawayId);
+        return shard == null ? Collections.emptyList() : shards[shard].getEntries(giveawayId);
+    }
+
+    @Override
+    public boolean hasEntry(long giveawayId, long userId)
+    {
+        Integer shard = giveawayShards.get(giveawayId);
+        return shard != null && shards[shard].hasEntry(giveawayId, userId);
+    }
+
+    @Override
+    public int countEntries(long giveawayId)
+    {
+        Integer shard = giveawayShards.get(giveawayId);
+        return shard == null ? 0 : shards[shard].countEntries(giveawayId);
+    }
+
+    @Override
+    public void writeEntries(List<EntryRegistry.Changes> changes)
+    {
+        // entries of giveaways that have since been removed are dropped
+        Map<Integer, List<EntryRegistry.Changes>> byShard = changes.stream()
+                .filter(c -> giveawayShards.containsKey(c.getGiveawayId()))
+                .collect(Collectors.groupingBy(c -> giveawayShards.get(c.getGiveawayId())));
+        fanOut(byShard, Storage::writeEntries);
+    }
+
+    // users
+    @Override
+    public CachedUser getUser(long userId)
+    {
+        return shards[shardOf(userId)].getUser(userId);
+    }
+
+    @Override
+    public void streamUsers(long[] userIds, Consumer<CachedUser> consumer)
+    {
+        for(int from = 0; from < userIds.length; from += USER_BATCH_SIZE)
+        {
+            long[] batch = Arrays.copyOfRange(userIds, from, Math.min(userIds.length, from + USER_BATCH_SIZE));
+            Map<Integer, long[]> byShard = groupByShard(batch);
+            Map<Long, CachedUser> found = new ConcurrentHashMap<>();
+            fanOut(byShard, (s, ids) -> s.streamUsers(ids, u -> found.put(u.getId(), u)));
+            for(long id: batch)
+            {
+                CachedUser u = found.get(id);
+                if(u != null)
+                    consumer.accept(u);
+            }
+        }
+    }
+
+    @Override
+    public void updateUser(long userId, Consumer<CachedUser> update)
+    {
+        shards[shardOf(userId)].updateUser(userId, update);
+    }
+
+    @Override
+    public void updateUsers(Map<Long, Consumer<CachedUser>> updates)
+    {
+        Map<Integer, Map<Long, Consumer<CachedUser>>> byShard = new HashMap<>();
+        updates.forEach((userId, update) -> byShard.computeIfAbsent(shardOf(userId), i -> new HashMap<>()).put(userId, update));
+        fanOut(byShard, Storage::updateUsers);
+    }
+
+    @Override
+    public List<CachedUser> getPremiumUsers()
+    {
+        return concat(fanOut(Storage::getPremiumUsers));
+    }
+
+    @Override
+    public List<CachedUser> getStaleUsers(long seenBefore, int limit)
+    {
+        List<CachedUser> stale = concat(fanOut(s -> s.getStaleUsers(seenBefore, limit)));
+        return stale.size() > limit ? stale.subList(0, limit) : stale;
+    }
+
+    @Override
+    public Set<Long> getReferencedUsers(long[] userIds)
+    {
+        // giveaways are placed by guild, so any shard may reference any user
+        Set<Long> referenced = new HashSet<>();
+        fanOut(s -> s.getReferencedUsers(userIds)).forEach(referenced::addAll);
+        return referenced;
+    }
+
+    @Override
+    public long[] removeStaleUsers(long[] userIds, long seenBefore)
+    {
+        Map<Integer, long[]> byShard = groupByShard(userIds);
+        List<Long> removed = Collections.synchronizedList(new ArrayList<>());
+        fanOut(byShard, (s, ids) -> Arrays.stream(s.removeStaleUsers(ids, seenBefore)).forEach(removed::add));
+        return removed.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    // settings
+    @Override
+    public GuildSettings getSettings(long guildId)
+    {
+        return shards[shardOf(guildId)].getSettings(guildId);
+    }
+
+    @Override
+    public GuildSettings updateSettings(long guildId, Consumer<GuildSettings> update)
+    {
+        return shards[shardOf(guildId)].updateSettings(guildId, update);
+    }
+
+    // snapshot
+    @Override
+    public long getSnapshotStamp()
+    {
+        // a snapshot only matches if it matches every shard
+        long stamp = shards[0].getSnapshotStamp();
+        for(int i = 1; i < shards.length; i++)
+            if(shards[i].getSnapshotStamp() != stamp)
+                return 0L;
+        return stamp;
+    }
+
+    @Override
+    public void setSnapshotStamp(long stamp)
+    {
+        for(Storage s: shards)
+            s.setSnapshotStamp(stamp);
+    }
+
+    private int shardOf(long id)
+    {
+        // snowflakes are not evenly spread in their low bits
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 32) % shards.length);
+    }
+
+    private Map<Integer, long[]> groupByShard(long[] ids)
+    {
+        return Arrays.stream(ids).boxed()
+                .collect(Collectors.groupingBy(this::shardOf, Collectors.collectingAndThen(Collectors.toList(),
+                        l -> l.stream().mapToLong(Long::longValue).toArray())));
+    }
+
+    // runs the call on every shard at once, and waits for all of them
+    private <T> List<T> fanOut(Function<Storage, T> call)
+    {
+        List<CompletableFuture<T>> futures = Arrays.stream(shards)
+                .map(s -> CompletableFuture.supplyAsync(() -> call.apply(s), fanout))
+                .collect(Collectors.toList());
+        return futures.stream().map(ShardedStorage::join).collect(Collectors.toList());
+    }
+
+    // runs the call on the shards that have work, at once, and waits for all of them
+    private <T> void fanOut(Map<Integer, T> work, ShardCall<T> call)
+    {
+        if(work.size() == 1)
+        {
+            Map.Entry<Integer, T> only = work.entrySet().iterator().next();
+            call.apply(shards[only.getKey()], only.getValue());
+            return;
+        }
+        List<CompletableFuture<Void>> futures = work.entrySet().stream()
+                .map(e -> CompletableFuture.runAsync(() -> call.apply(shards[e.getKey()], e.getValue()), fanout))
+                .collect(Collectors.toList());
+        futures.forEach(ShardedStorage::join);
+    }
+
+    private static <T> T join(CompletableFuture<T> future)
+    {
+        try
+        {
+            return future.join();
+        }
+        catch(CompletionException ex)
+        {
+            if(ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw ex;
+        }
+    }
+
+    private static <T> List<T> concat(List<List<T>> lists)
+    {
+        return lists.stream().flatMap(List::stream).collect(Collectors.toList());
+    }
+
+    private interface ShardCall<T>
+    {
+        void apply(Storage shard, T work);
+    }
+}
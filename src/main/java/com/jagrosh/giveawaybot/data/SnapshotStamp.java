@@ -0,0 +1,55 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import javax.persistence.*;
+
+/**
+ * The stamp of the state snapshot that matches the database, in a single row
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+@Entity
+@Table(name = "SNAPSHOT")
+public class SnapshotStamp
+{
+    public final static long ID = 0L;
+
+    @Id
+    @Column(name = "ID")
+    private long id;
+
+    @Column(name = "STAMP")
+    private long stamp;
+
+    public SnapshotStamp() {}
+
+    public SnapshotStamp(long stamp)
+    {
+        this.id = ID;
+        this.stamp = stamp;
+    }
+
+    public long getStamp()
+    {
+        return stamp;
+    }
+
+    public void setStamp(long stamp)
+    {
+        this.stamp = stamp;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import com.jagrosh.giveawaybot.entities.PremiumLevel;
+import com.jagrosh.giveawaybot.util.PackedLongSet;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The hot in-memory state of {@link Database}: cached giveaways, loaded entry
+ * sets, cached guild settings and premium levels, in a compact binary file.
+ * A snapshot is only trusted at startup if its stamp matches the one stored in
+ * the database, which is cleared by the first write after the snapshot is taken.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class StateSnapshot
+{
+    private final static int MAGIC = 0x47425332; // GBS2
+    private final static byte NO_SETTINGS = 0, SETTINGS = 1;
+
+    private final long stamp;
+    private final List<Giveaway> giveaways = new ArrayList<>();
+    private final Map<Long, PackedLongSet> entries = new HashMap<>();
+    private final Map<Long, GuildSettings> settings = new HashMap<>(); // SettingsCache.DEFAULT if there are none
+    private final Map<Long, PremiumLevel> premiumUsers = new HashMap<>();
+
+    public StateSnapshot(long stamp)
+    {
+        this.stamp = stamp;
+    }
+
+    public long getStamp()
+    {
+        return stamp;
+    }
+
+    public List<Giveaway> getGiveaways()
+    {
+        return giveaways;
+    }
+
+    public Map<Long, PackedLongSet> getEntries()
+    {
+        return entries;
+    }
+
+    public Map<Long, GuildSettings> getSettings()
+    {
+        return settings;
+    }
+
+    public Map<Long, PremiumLevel> getPremiumUsers()
+    {
+        return premiumUsers;
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and then moves it into place, so
+     * a crash while writing leaves the previous snapshot intact
+     *
+     * @param file where to write the snapshot
+     * @throws IOException if writing fails
+     */
+    public void write(Path file) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(stamp);
+        out.writeInt(giveaways.size());
+        for(Giveaway g: giveaways)
+            writeBytes(out, EntityCodec.encode(g));
+        out.writeInt(entries.size());
+        for(Map.Entry<Long, PackedLongSet> e: entries.entrySet())
+        {
+            out.writeLong(e.getKey());
+            e.getValue().writeTo(out);
+        }
+        out.writeInt(settings.size());
+        for(Map.Entry<Long, GuildSettings> e: settings.entrySet())
+        {
+            out.writeLong(e.getKey());
+            if(e.getValue() == SettingsCache.DEFAULT)
+                out.writeByte(NO_SETTINGS);
+            else
+            {
+                out.writeByte(SETTINGS);
+                writeBytes(out, EntityCodec.encode(e.getValue()));
+            }
+        }
+        out.writeInt(premiumUsers.size());
+        for(Map.Entry<Long, PremiumLevel> e: premiumUsers.entrySet())
+        {
+            out.writeLong(e.getKey());
+            out.writeByte(e.getValue().level);
+        }
+        out.flush();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot through a read-only memory mapping of the file
+     *
+     * @param file the snapshot file
+     * @return the snapshot, or null if there is none or it cannot be read
+     */
+    public static StateSnapshot read(Path file)
+    {
+        if(!Files.exists(file))
+            return null;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(in.remaining() < 12 || in.getInt() != MAGIC)
+                return null;
+            StateSnapshot snapshot = new StateSnapshot(in.getLong());
+            for(int i = in.getInt(); i > 0; i--)
+                snapshot.giveaways.add(EntityCodec.decodeGiveaway(readBytes(in)));
+            for(int i = in.getInt(); i > 0; i--)
+            {
+                long giveawayId = in.getLong();
+                snapshot.entries.put(giveawayId, PackedLongSet.readFrom(in));
+            }
+            for(int i = in.getInt(); i > 0; i--)
+            {
+                long guildId = in.getLong();
+                snapshot.settings.put(guildId, in.get() == NO_SETTINGS ? SettingsCache.DEFAULT : EntityCodec.decodeSettings(readBytes(in)));
+            }
+            for(int i = in.getInt(); i > 0; i--)
+            {
+                long userId = in.getLong();
+                snapshot.premiumUsers.put(userId, PremiumLevel.get(in.get()));
+            }
+            return snapshot;
+        }
+        catch(IOException | RuntimeException ex)
+        {
+            // includes BufferUnderflowException from a truncated file
+            return null;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+    {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer in)
+    {
+        int length = in.getInt();
+        if(length < 0 || length > in.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The storage engine behind {@link Database}. Caching, the entry registry and
+ * the journal all live in Database, so an engine only has to store and query
+ * rows. Implementations must be thread-safe, and must apply updates to the same
+ * id one at a time.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public interface Storage
+{
+    // giveaways
+    Giveaway getGiveaway(long id);
+
+    List<Giveaway> getGiveawaysByGuild(long guildId);
+
+    List<Giveaway> getGiveawaysByChannel(long channelId);
+
+    List<Giveaway> getGiveawaysEndingBefore(long endTime);
+
+    /**
+     * Visits the ids and end time of every giveaway, without loading the rest
+     *
+     * @param visitor called once per giveaway
+     */
+    void scanGiveaways(GiveawayVisitor visitor);
+
+    void saveGiveaway(Giveaway giveaway);
+
+    /**
+     * Removes a giveaway along with all of its entries
+     *
+     * @param id the giveaway's message id
+     */
+    void removeGiveaway(long id);
+
+    // entries
+    Collection<Long> getEntries(long giveawayId);
+
+    /**
+     * @param giveawayId the giveaway
+     * @param userId the user
+     * @return true if the user is entered, found without loading the other entries
+     */
+    boolean hasEntry(long giveawayId, long userId);
+
+    /**
+     * @param giveawayId the giveaway
+     * @return the number of entries, found without loading them
+     */
+    int countEntries(long giveawayId);
+
+    /**
+     * Applies entry changes; all of them are written in one batch where the
+     * engine supports it
+     *
+     * @param changes the entries added and removed per giveaway
+     */
+    void writeEntries(List<EntryRegistry.Changes> changes);
+
+    // users
+    CachedUser getUser(long userId);
+
+    /**
+     * Looks up many users, a batch at a time, passing each to the consumer in
+     * the order of the ids before the next batch is read; users that are not
+     * stored are left out
+     *
+     * @param userIds the users to look up
+     * @param consumer receives the stored users, in order
+     */
+    void streamUsers(long[] userIds, Consumer<CachedUser> consumer);
+
+    /**
+     * @param userIds the users to look up
+     * @return the stored users, in order; users that are not stored are left out
+     */
+    default List<CachedUser> getUsers(long[] userIds)
+    {
+        List<CachedUser> list = new ArrayList<>(userIds.length);
+        streamUsers(userIds, list::add);
+        return list;
+    }
+
+    /**
+     * Updates a user, creating it first if it does not exist
+     *
+     * @param userId the user to update
+     * @param update changes to apply
+     */
+    void updateUser(long userId, Consumer<CachedUser> update);
+
+    /**
+     * Updates many users, creating any that do not exist; all of them are
+     * written in one batch where the engine supports it
+     *
+     * @param updates changes to apply, keyed by user id
+     */
+    void updateUsers(Map<Long, Consumer<CachedUser>> updates);
+
+    List<CachedUser> getPremiumUsers();
+
+    /**
+     * @param seenBefore epoch second
+     * @param limit the most users to return
+     * @return users without premium that were last seen before the given time;
+     * users that have never been seen are not included
+     */
+    List<CachedUser> getStaleUsers(long seenBefore, int limit);
+
+    /**
+     * @param userIds the users to check
+     * @return those of the users that host a stored giveaway or are entered in one
+     */
+    Set<Long> getReferencedUsers(long[] userIds);
+
+    /**
+     * Removes users, unless they have been seen or given premium since they were
+     * found to be stale
+     *
+     * @param userIds the users to remove
+     * @param seenBefore epoch second; users seen since are kept
+     * @return the ids of the users that were removed
+     */
+    long[] removeStaleUsers(long[] userIds, long seenBefore);
+
+    // settings
+    GuildSettings getSettings(long guildId);
+
+    /**
+     * Updates a guild's settings, creating them first if they do not exist
+     *
+     * @param guildId the guild to update
+     * @param update changes to apply
+     * @return the settings as stored after the update, detached from storage
+     */
+    GuildSettings updateSettings(long guildId, Consumer<GuildSettings> update);
+
+    // snapshot
+    /**
+     * @return the stamp of the snapshot that matches the stored data, or 0 if
+     * there is none
+     */
+    long getSnapshotStamp();
+
+    /**
+     * @param stamp the stamp of a snapshot that matches the stored data, or 0
+     * once the data has changed since
+     */
+    void setSnapshotStamp(long stamp);
+
+    /**
+     * Runs some writes as one transaction where the engine supports it: writes
+     * made by the work on the calling thread are committed together when it
+     * returns. A failure may leave some or all of them uncommitted.
+     *
+     * @param work the writes to make
+     */
+    void batch(Runnable work);
+
+    /**
+     * @return how many parts this storage is split into, which are written
+     * independently of each other
+     */
+    default int countPartitions()
+    {
+        return 1;
+    }
+
+    /**
+     * @param partition the part, from 0 to {@link #countPartitions()}
+     * @return the part, whose batches hold the writes made to it through this storage
+     */
+    default Storage getPartition(int partition)
+    {
+        return this;
+    }
+
+    /**
+     * @param id a guild, for its settings and giveaways, or a user
+     * @return the part that holds its data
+     */
+    default int partitionOf(long id)
+    {
+        return 0;
+    }
+
+    void close();
+
+    interface GiveawayVisitor
+    {
+        void visit(long messageId, long guildId, long channelId, long endTime);
+    }
+}
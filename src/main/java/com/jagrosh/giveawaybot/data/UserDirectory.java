@@ -0,0 +1,227 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.data;
+
+import com.jagrosh.giveawaybot.util.BoundedCache;
+import com.jagrosh.giveawaybot.util.OtherUtil;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind for user profiles (name, discriminator and avatar). Updates are
+ * compared against the last profile written for that user, repeated updates to
+ * the same user are merged into the latest, and the rest are written to storage
+ * in batches by {@link #flush()}, so no interaction waits on a profile commit.
+ * An unchanged profile is still written once a day, to keep the user's last
+ * seen time current for compaction. Users with nothing known yet, such as after
+ * a restart, are compared against storage when they are flushed.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class UserDirectory
+{
+    public final static int FLUSH_THRESHOLD = 1000;
+    private final static int KNOWN_PROFILES = 200000;
+    private final static long TOUCH_INTERVAL = TimeUnit.DAYS.toSeconds(1);
+
+    private final Storage storage;
+    private final Runnable flushTrigger;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final ConcurrentHashMap<Long, Profile> pending = new ConcurrentHashMap<>();
+    private final BoundedCache<Long, Profile> written = new BoundedCache<>(KNOWN_PROFILES, 0, TimeUnit.SECONDS);
+
+    /**
+     * @param storage where profiles are written
+     * @param flushTrigger called when enough updates are pending that they should be
+     * flushed soon; it must not flush on the calling thread
+     */
+    public UserDirectory(Storage storage, Runnable flushTrigger)
+    {
+        this.storage = storage;
+        this.flushTrigger = flushTrigger;
+    }
+
+    /**
+     * Queues a profile update, unless it is the same as what was last written
+     * and that was recent
+     *
+     * @param userId the user
+     * @param username the user's name
+     * @param discriminator the user's discriminator
+     * @param avatar the user's avatar hash
+     * @return true if an update was queued
+     */
+    public boolean update(long userId, String username, String discriminator, String avatar)
+    {
+        Profile profile = new Profile(username, discriminator, avatar, Instant.now().getEpochSecond());
+        Profile last = written.getIfPresent(userId);
+        if(profile.equals(last) && profile.seen - last.seen < TOUCH_INTERVAL)
+        {
+            // changed back before an older update was written
+            pending.remove(userId);
+            return false;
+        }
+        // concurrent puts can skip past the threshold, so trigger once at or above it
+        if(pending.put(userId, profile) == null && pending.size() >= FLUSH_THRESHOLD && flushRequested.compareAndSet(false, true))
+            flushTrigger.run();
+        return true;
+    }
+
+    /**
+     * Forgets what was last written for a user, after it was changed elsewhere
+     *
+     * @param userId the user
+     */
+    public void invalidate(long userId)
+    {
+        written.invalidate(userId);
+    }
+
+    public int getPendingCount()
+    {
+        return pending.size();
+    }
+
+    public BoundedCache.Stats getWrittenStats()
+    {
+        return written.getStats();
+    }
+
+    /**
+     * Writes every pending update in one batch
+     */
+    public synchronized void flush()
+    {
+        flushRequested.set(false);
+        Map<Long, Profile> batch = new HashMap<>();
+        for(Long userId: pending.keySet())
+        {
+            Profile p = pending.remove(userId);
+            if(p != null)
+                batch.put(userId, p);
+        }
+        write(batch);
+    }
+
+    /**
+     * Writes the pending updates of some users, so that they can be read back
+     *
+     * @param userIds the users about to be read
+     */
+    public synchronized void flush(long[] userIds)
+    {
+        if(pending.isEmpty())
+            return;
+        Map<Long, Profile> batch = new HashMap<>();
+        for(long userId: userIds)
+        {
+            Profile p = pending.remove(userId);
+            if(p != null)
+                batch.put(userId, p);
+        }
+        write(batch);
+    }
+
+    private void write(Map<Long, Profile> batch)
+    {
+        try
+        {
+            seed(batch);
+            if(batch.isEmpty())
+                return;
+            Map<Long, Consumer<CachedUser>> updates = new HashMap<>();
+            batch.forEach((userId, p) -> updates.put(userId, p::applyTo));
+            storage.updateUsers(updates);
+        }
+        catch(RuntimeException ex)
+        {
+            // keep them for the next flush, unless they were updated again meanwhile
+            batch.forEach(pending::putIfAbsent);
+            throw ex;
+        }
+        batch.forEach(written::put);
+    }
+
+    // learns what is stored for users with nothing known, in one read, and drops
+    // their updates if storage already has them
+    private void seed(Map<Long, Profile> batch)
+    {
+        long[] unknown = batch.keySet().stream().filter(id -> written.getIfPresent(id) == null).mapToLong(Long::longValue).toArray();
+        if(unknown.length == 0)
+            return;
+        storage.streamUsers(unknown, u -> 
+        {
+            Profile stored = Profile.of(u), p = batch.get(u.getId());
+            written.put(u.getId(), stored);
+            if(p.equals(stored) && p.seen - stored.seen < TOUCH_INTERVAL)
+                batch.remove(u.getId());
+        });
+    }
+
+    private static class Profile
+    {
+        private final String username, discriminator, avatar;
+        private final long seen; // not part of equality
+
+        private Profile(String username, String discriminator, String avatar, long seen)
+        {
+            this.username = username;
+            this.discriminator = discriminator;
+            this.avatar = avatar;
+            this.seen = seen;
+        }
+
+        private static Profile of(CachedUser u)
+        {
+            return new Profile(u.getUsername(), u.getDiscriminator(), u.getAvatar(), u.getLastSeen().getEpochSecond());
+        }
+
+        private void applyTo(CachedUser u)
+        {
+            // unchanged fields are not set, so an unchanged row is not dirtied
+            if(!OtherUtil.strEquals(username, u.getUsername()))
+                u.setUsername(username);
+            if(!OtherUtil.strEquals(discriminator, u.getDiscriminator()))
+                u.setDiscriminator(discriminator);
+            if(!OtherUtil.strEquals(avatar, u.getAvatar()))
+                u.setAvatar(avatar);
+            u.setLastSeen(Instant.ofEpochSecond(seen));
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if(!(other instanceof Profile))
+                return false;
+            Profile p = (Profile) other;
+            return OtherUtil.strEquals(username, p.username)
+                    && OtherUtil.strEquals(discriminator, p.discriminator)
+                    && OtherUtil.strEquals(avatar, p.avatar);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(username, discriminator, avatar);
+        }
+    }
+}
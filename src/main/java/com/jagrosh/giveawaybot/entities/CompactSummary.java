@@ -0,0 +1,405 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.entities;
+
+import com.jagrosh.giveawaybot.data.CachedUser;
+import com.jagrosh.giveawaybot.data.Giveaway;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The summary of an ended giveaway in a compact binary form. After a small
+ * uncompressed preamble (magic, version and compression), the body holds the
+ * giveaway, its host, its winners and its entrants. User ids are varints of the
+ * difference from the previous id, and names and discriminators are written
+ * once and then referred to by their index. Entrants are written in chunks, so
+ * neither side needs to know or hold them all. {@link #toJson} renders a
+ * summary in the same JSON shape as {@link SummaryWriter}.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class CompactSummary
+{
+    public final static String FILE_NAME = "giveaway_summary.gbs";
+    public final static int VERSION = 1;
+    private final static int MAGIC = 0x4742534D; // GBSM
+    private final static int CHUNK_SIZE = 1024;
+
+    public enum Compression
+    {
+        NONE, DEFLATE, GZIP
+    }
+
+    /**
+     * @param out where the summary is written; it is not closed
+     * @param compression how the body is compressed
+     * @param giveaway the ended giveaway
+     * @param host the host of the giveaway
+     * @param winners the winners
+     * @param entries streams every entrant to the consumer it is given; ascending
+     * ids encode smallest
+     * @throws IOException if writing fails
+     */
+    public static void write(OutputStream out, Compression compression, Giveaway giveaway, CachedUser host,
+            List<CachedUser> winners, Consumer<Consumer<CachedUser>> entries) throws IOException
+    {
+        DataOutputStream preamble = new DataOutputStream(out);
+        preamble.writeInt(MAGIC);
+        preamble.writeByte(VERSION);
+        preamble.writeByte(compression.ordinal());
+        preamble.flush();
+
+        OutputStream compressed = compression == Compression.GZIP ? new GZIPOutputStream(new NonClosing(out), 1 << 16)
+                : compression == Compression.DEFLATE ? new DeflaterOutputStream(new NonClosing(out), true)
+                : new NonClosing(out);
+        try(Body body = new Body(new DataOutputStream(new BufferedOutputStream(compressed, 1 << 16))))
+        {
+            body.writeLong(giveaway.getMessageId());
+            body.writeString(giveaway.getPrize());
+            body.writeString(giveaway.getDescription());
+            body.writeVarLong(giveaway.getWinners());
+            body.writeVarLong(giveaway.getEndTime());
+            body.writeUser(host, 0L);
+            body.writeVarLong(winners.size());
+            long previous = 0L;
+            for(CachedUser u: winners)
+                previous = body.writeUser(u, previous);
+            body.writeEntries(entries);
+        }
+        catch(UncheckedIOException ex)
+        {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Renders a summary in the JSON shape of {@link SummaryWriter}, for readers
+     * of the original format
+     *
+     * @param in the compact summary
+     * @param out where the JSON is written
+     * @throws IOException if reading or writing fails, or the summary is not valid
+     */
+    public static void toJson(InputStream in, Writer out) throws IOException
+    {
+        Reader reader = new Reader(in);
+        try
+        {
+            SummaryWriter.write(out, reader.getGiveaway(), reader.getHost(), reader.getWinners(), consumer ->
+            {
+                try
+                {
+                    reader.forEachEntry(consumer);
+                }
+                catch(IOException ex)
+                {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+        catch(UncheckedIOException ex)
+        {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Reads a summary in order: the giveaway, host and winners are read when the
+     * reader is created, and the entrants as they are iterated
+     */
+    public static class Reader
+    {
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+        private final Giveaway giveaway;
+        private final CachedUser host;
+        private final List<CachedUser> winners = new ArrayList<>();
+        private boolean read = false;
+
+        public Reader(InputStream input) throws IOException
+        {
+            DataInputStream preamble = new DataInputStream(input);
+            if(preamble.readInt() != MAGIC)
+                throw new IOException("Not a compact summary");
+            int version = preamble.readUnsignedByte();
+            if(version < 1 || version > VERSION)
+                throw new IOException("Unsupported summary version " + version);
+            int compression = preamble.readUnsignedByte();
+            if(compression >= Compression.values().length)
+                throw new IOException("Unsupported summary compression " + compression);
+            InputStream body = Compression.values()[compression] == Compression.GZIP ? new GZIPInputStream(input, 1 << 16)
+                    : Compression.values()[compression] == Compression.DEFLATE ? new InflaterInputStream(input)
+                    : input;
+            this.in = new DataInputStream(new BufferedInputStream(body, 1 << 16));
+
+            long messageId = in.readLong();
+            String prize = readString();
+            String description = readString();
+            int numWinners = (int) readVarLong();
+            long endTime = readVarLong();
+            host = readUser(0L);
+            giveaway = new Giveaway(host.getId(), Instant.ofEpochSecond(endTime), numWinners, prize, description);
+            giveaway.setMessageId(messageId);
+            long previous = 0L;
+            for(long i = readVarLong(); i > 0; i--)
+            {
+                CachedUser u = readUser(previous);
+                winners.add(u);
+                previous = u.getId();
+            }
+        }
+
+        public Giveaway getGiveaway()
+        {
+            return giveaway;
+        }
+
+        public CachedUser getHost()
+        {
+            return host;
+        }
+
+        public List<CachedUser> getWinners()
+        {
+            return winners;
+        }
+
+        /**
+         * Reads the entrants, which can only be done once
+         *
+         * @param consumer receives each entrant
+         * @throws IOException if reading fails
+         */
+        public void forEachEntry(Consumer<CachedUser> consumer) throws IOException
+        {
+            if(read)
+                throw new IllegalStateException("Entries have already been read");
+            read = true;
+            long previous = 0L;
+            for(int chunk = (int) readVarLong(); chunk > 0; chunk = (int) readVarLong())
+            {
+                for(int i = 0; i < chunk; i++)
+                {
+                    CachedUser u = readUser(previous);
+                    previous = u.getId();
+                    consumer.accept(u);
+                }
+            }
+        }
+
+        private CachedUser readUser(long previous) throws IOException
+        {
+            CachedUser u = new CachedUser();
+            u.setId(previous + unzigzag(readVarLong()));
+            u.setUsername(readShared());
+            u.setDiscriminator(readShared());
+            u.setAvatar(readString());
+            u.setPremiumLevel(PremiumLevel.get((int) readVarLong()));
+            return u;
+        }
+
+        // 0 is null, the next index is a new string, anything lower is a string seen before
+        private String readShared() throws IOException
+        {
+            int ref = (int) readVarLong();
+            if(ref == 0)
+                return null;
+            if(ref == strings.size() + 1)
+                strings.add(readString());
+            else if(ref > strings.size())
+                throw new IOException("Invalid string reference " + ref);
+            return strings.get(ref - 1);
+        }
+
+        private String readString() throws IOException
+        {
+            long length = readVarLong();
+            if(length == 0)
+                return null;
+            byte[] bytes = new byte[(int) length - 1];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private long readVarLong() throws IOException
+        {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7)
+            {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+
+    private static class Body implements Closeable
+    {
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream();
+        private Body chunk;
+        private int chunkCount;
+        private long previousEntry = 0L;
+
+        private Body(DataOutputStream out)
+        {
+            this.out = out;
+        }
+
+        private void writeEntries(Consumer<Consumer<CachedUser>> entries) throws IOException
+        {
+            // entrants share the string table, but are buffered a chunk at a time to be counted
+            chunk = new Body(new DataOutputStream(chunkBytes));
+            entries.accept(u ->
+            {
+                try
+                {
+                    previousEntry = chunk.writeUser(u, previousEntry, strings);
+                    if(++chunkCount == CHUNK_SIZE)
+                        flushChunk();
+                }
+                catch(IOException ex)
+                {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            flushChunk();
+            writeVarLong(0);
+        }
+
+        private void flushChunk() throws IOException
+        {
+            if(chunkCount == 0)
+                return;
+            writeVarLong(chunkCount);
+            chunk.out.flush();
+            chunkBytes.writeTo(out);
+            chunkBytes.reset();
+            chunkCount = 0;
+        }
+
+        private long writeUser(CachedUser u, long previous) throws IOException
+        {
+            return writeUser(u, previous, strings);
+        }
+
+        private long writeUser(CachedUser u, long previous, Map<String, Integer> table) throws IOException
+        {
+            writeVarLong(zigzag(u.getId() - previous));
+            writeShared(u.getUsername(), table);
+            writeShared(u.getDiscriminator(), table);
+            writeString(u.getAvatar());
+            writeVarLong(u.getPremiumLevel().level);
+            return u.getId();
+        }
+
+        private void writeShared(String s, Map<String, Integer> table) throws IOException
+        {
+            if(s == null)
+            {
+                writeVarLong(0);
+                return;
+            }
+            Integer ref = table.get(s);
+            if(ref != null)
+            {
+                writeVarLong(ref);
+                return;
+            }
+            table.put(s, table.size() + 1);
+            writeVarLong(table.size());
+            writeString(s);
+        }
+
+        // the length plus one, so that 0 is null
+        private void writeString(String s) throws IOException
+        {
+            if(s == null)
+            {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1);
+            out.write(bytes);
+        }
+
+        private void writeLong(long v) throws IOException
+        {
+            out.writeLong(v);
+        }
+
+        private void writeVarLong(long v) throws IOException
+        {
+            while((v & ~0x7FL) != 0)
+            {
+                out.writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+
+    private static long zigzag(long v)
+    {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v)
+    {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    // lets the compressor be finished and closed without closing the stream under it
+    private static class NonClosing extends FilterOutputStream
+    {
+        private NonClosing(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            flush();
+        }
+    }
+}
@@ -15,10 +15,15 @@
  */
 package com.jagrosh.giveawaybot.entities;
 
+import club.minnced.discord.webhook.WebhookClient;
 import club.minnced.discord.webhook.WebhookClientBuilder;
 import club.minnced.discord.webhook.WebhookCluster;
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
+import java.io.File;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  *
@@ -36,18 +41,42 @@ public class FileUploader
     }
     
     public String uploadFile(String contents, String filename)
+    {
+        return uploadFileAsync(contents, filename).join();
+    }
+    
+    /**
+     * @param contents the file contents
+     * @param filename the file name
+     * @return the url of the uploaded file, or null if it could not be uploaded
+     */
+    public CompletableFuture<String> uploadFileAsync(String contents, String filename)
+    {
+        return upload(webhook -> webhook.send(contents.getBytes(), filename));
+    }
+    
+    /**
+     * @param file the file to upload, which must not be removed until the upload is done
+     * @param filename the name to upload it as
+     * @return the url of the uploaded file, or null if it could not be uploaded
+     */
+    public CompletableFuture<String> uploadFileAsync(File file, String filename)
+    {
+        return upload(webhook -> webhook.send(file, filename));
+    }
+    
+    private CompletableFuture<String> upload(Function<WebhookClient, CompletableFuture<ReadonlyMessage>> send)
     {
         int val = index.incrementAndGet();
         try
         {
-            return cluster.getWebhooks()
-                    .get(val % cluster.getWebhooks().size())
-                    .send(contents.getBytes(), filename)
-                    .get().getAttachments().get(0).getUrl();
+            return send.apply(cluster.getWebhooks().get(val % cluster.getWebhooks().size()))
+                    .thenApply(m -> m.getAttachments().get(0).getUrl())
+                    .exceptionally(ex -> null);
         }
         catch(Exception ex)
         {
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
     }
     
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.entities;
+
+import com.jagrosh.giveawaybot.data.CachedUser;
+import com.jagrosh.giveawaybot.data.Giveaway;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.function.Consumer;
+import org.json.JSONObject;
+
+/**
+ * Writes the summary of an ended giveaway as JSON, one entrant at a time, so
+ * that only the entrant being written is held as a JSON object
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class SummaryWriter
+{
+    private final Writer out;
+    private boolean first;
+
+    private SummaryWriter(Writer out)
+    {
+        this.out = out;
+    }
+
+    /**
+     * @param out where the summary is written
+     * @param giveaway the ended giveaway
+     * @param host the host of the giveaway
+     * @param winners the winners
+     * @param entries streams every entrant to the consumer it is given
+     * @throws IOException if writing fails
+     */
+    public static void write(Writer out, Giveaway giveaway, CachedUser host, List<CachedUser> winners, 
+            Consumer<Consumer<CachedUser>> entries) throws IOException
+    {
+        SummaryWriter writer = new SummaryWriter(out);
+        out.write("{\"giveaway\":");
+        new JSONObject()
+                .put("id", Long.toString(giveaway.getMessageId()))
+                .put("prize", giveaway.getPrize())
+                .put("desc", giveaway.getDescription())
+                .put("num_winners", giveaway.getWinners())
+                .put("host", host.toJson())
+                .put("end", giveaway.getEndTime())
+                .write(out);
+        out.write(",\"winners\":[");
+        writer.first = true;
+        for(CachedUser u: winners)
+            writer.writeUser(u);
+        out.write("],\"entries\":[");
+        writer.first = true;
+        try
+        {
+            entries.accept(u -> 
+            {
+                try
+                {
+                    writer.writeUser(u);
+                }
+                catch(IOException ex)
+                {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+        catch(UncheckedIOException ex)
+        {
+            throw ex.getCause();
+        }
+        out.write("]}");
+        out.flush();
+    }
+
+    private void writeUser(CachedUser u) throws IOException
+    {
+        if(!first)
+            out.write(',');
+        first = false;
+        u.toJson().write(out);
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A concurrent, size-bounded cache using the W-TinyLFU policy: new entries go
+ * into a small LRU window, and an entry leaving the window only displaces an
+ * entry of the main (segmented LRU) space if it has been used more often, as
+ * estimated by a count-min sketch. This keeps one-off lookups from flushing out
+ * entries that are used all the time.
+ *
+ * Lookups are a single ConcurrentHashMap read; recording the access is skipped
+ * if another thread is updating the policy. A null value can be cached for a
+ * limited time, to absorb repeated lookups of something that does not exist.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class BoundedCache<K, V>
+{
+    private final static int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final ReentrantLock policy = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final AccessQueue<K, V>[] queues;
+    private final int maximum, windowMax, protectedMax;
+    private final long negativeTtl;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+    private long version = 0; // guarded by policy lock; changes with every put or invalidation
+
+    @SuppressWarnings("unchecked")
+    public BoundedCache(int maximum, long negativeTtl, TimeUnit unit)
+    {
+        if(maximum < 2)
+            throw new IllegalArgumentException("Maximum size must be at least 2");
+        this.maximum = maximum;
+        this.windowMax = Math.max(1, maximum / 100);
+        this.protectedMax = (maximum - windowMax) * 4 / 5;
+        this.negativeTtl = unit.toNanos(negativeTtl);
+        this.sketch = new FrequencySketch(maximum);
+        this.queues = new AccessQueue[]{ new AccessQueue<>(WINDOW), new AccessQueue<>(PROBATION), new AccessQueue<>(PROTECTED) };
+    }
+
+    /**
+     * Gets a value, loading and caching it if it is not present
+     *
+     * @param key the key to look up
+     * @param loader loads the value on a miss; may return null
+     * @return the cached or loaded value
+     */
+    public V get(K key, Function<K, V> loader)
+    {
+        Node<K, V> node = data.get(key);
+        if(node != null && !node.isExpired(System.nanoTime()))
+        {
+            hits.increment();
+            recordAccess(node);
+            return node.value;
+        }
+        misses.increment();
+        long loadedAt;
+        policy.lock();
+        try
+        {
+            loadedAt = version;
+        }
+        finally
+        {
+            policy.unlock();
+        }
+        V value = loader.apply(key);
+        policy.lock();
+        try
+        {
+            // a put or invalidation during the load may be newer than what was loaded
+            if(version == loadedAt)
+                insert(key, value);
+            else if(node != null)
+                purge(node);
+        }
+        finally
+        {
+            policy.unlock();
+        }
+        return value;
+    }
+
+    public V getIfPresent(K key)
+    {
+        Node<K, V> node = data.get(key);
+        if(node == null || node.isExpired(System.nanoTime()))
+        {
+            misses.increment();
+            if(node != null)
+            {
+                policy.lock();
+                try
+                {
+                    purge(node);
+                }
+                finally
+                {
+                    policy.unlock();
+                }
+            }
+            return null;
+        }
+        hits.increment();
+        recordAccess(node);
+        return node.value;
+    }
+
+    public void put(K key, V value)
+    {
+        policy.lock();
+        try
+        {
+            version++;
+            insert(key, value);
+        }
+        finally
+        {
+            policy.unlock();
+        }
+    }
+
+    public void invalidate(K key)
+    {
+        policy.lock();
+        try
+        {
+            version++;
+            Node<K, V> node = data.remove(key);
+            if(node != null)
+                queues[node.queue].remove(node);
+        }
+        finally
+        {
+            policy.unlock();
+        }
+    }
+
+    public int size()
+    {
+        return data.size();
+    }
+
+    /**
+     * Passes every cached non-null value to the consumer, without counting as
+     * an access; entries added or removed meanwhile may or may not be seen
+     *
+     * @param consumer receives the keys and values
+     */
+    public void forEach(BiConsumer<K, V> consumer)
+    {
+        data.forEach((key, node) ->
+        {
+            V value = node.value;
+            if(value != null)
+                consumer.accept(key, value);
+        });
+    }
+
+    public Stats getStats()
+    {
+        return new Stats(data.size(), maximum, hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    private void recordAccess(Node<K, V> node)
+    {
+        // access order is only a hint, so never wait for it
+        if(!policy.tryLock())
+            return;
+        try
+        {
+            sketch.increment(node.key.hashCode());
+            if(data.get(node.key) == node)
+                onAccess(node);
+        }
+        finally
+        {
+            policy.unlock();
+        }
+    }
+
+    // must hold policy lock
+    private void insert(K key, V value)
+    {
+        long expires = value == null ? System.nanoTime() + negativeTtl : Long.MAX_VALUE;
+        sketch.increment(key.hashCode());
+        Node<K, V> node = data.get(key);
+        if(node != null)
+        {
+            node.value = value;
+            node.expires = expires;
+            onAccess(node);
+            return;
+        }
+        node = new Node<>(key, value, expires);
+        data.put(key, node);
+        queues[WINDOW].addLast(node);
+        evict();
+    }
+
+    // must hold policy lock; removes an expired entry, unless it has been replaced
+    private void purge(Node<K, V> node)
+    {
+        if(node.isExpired(System.nanoTime()) && data.remove(node.key, node))
+            queues[node.queue].remove(node);
+    }
+
+    // must hold policy lock
+    private void onAccess(Node<K, V> node)
+    {
+        switch(node.queue)
+        {
+            case WINDOW:
+            case PROTECTED:
+                queues[node.queue].moveToEnd(node);
+                break;
+            case PROBATION:
+                queues[PROBATION].remove(node);
+                queues[PROTECTED].addLast(node);
+                if(queues[PROTECTED].size > protectedMax)
+                    queues[PROBATION].addLast(queues[PROTECTED].removeFirst());
+                break;
+        }
+    }
+
+    // must hold policy lock
+    private void evict()
+    {
+        // entries leaving the window become candidates for the main space
+        while(queues[WINDOW].size > windowMax)
+            queues[PROBATION].addLast(queues[WINDOW].removeFirst());
+
+        while(data.size() > maximum)
+        {
+            AccessQueue<K, V> probation = queues[PROBATION].size > 0 ? queues[PROBATION] : queues[PROTECTED];
+            Node<K, V> victim = probation.first(), candidate = probation.last();
+            Node<K, V> evicted = victim;
+            if(candidate != victim && !victim.isExpired(System.nanoTime())
+                    && sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode()))
+                evicted = candidate;
+            probation.remove(evicted);
+            data.remove(evicted.key, evicted);
+            evictions.increment();
+        }
+    }
+
+    public static class Stats
+    {
+        public final int size, maximum;
+        public final long hits, misses, evictions;
+
+        private Stats(int size, int maximum, long hits, long misses, long evictions)
+        {
+            this.size = size;
+            this.maximum = maximum;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public double getHitRate()
+        {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d/%d, %.1f%% hits, %d evictions", size, maximum, getHitRate() * 100, evictions);
+        }
+    }
+
+    private static class Node<K, V>
+    {
+        private final K key;
+        private volatile V value;
+        private volatile long expires;
+
+        // guarded by policy lock
+        private Node<K, V> prev, next;
+        private int queue = WINDOW;
+
+        private Node(K key, V value, long expires)
+        {
+            this.key = key;
+            this.value = value;
+            this.expires = expires;
+        }
+
+        private boolean isExpired(long now)
+        {
+            return expires != Long.MAX_VALUE && now - expires > 0;
+        }
+    }
+
+    // a doubly-linked list in access order, least recent first
+    private static class AccessQueue<K, V>
+    {
+        private Node<K, V> head, tail;
+        private int size = 0;
+        private final int id;
+
+        private AccessQueue(int id)
+        {
+            this.id = id;
+        }
+
+        private Node<K, V> first()
+        {
+            return head;
+        }
+
+        private Node<K, V> last()
+        {
+            return tail;
+        }
+
+        private void addLast(Node<K, V> node)
+        {
+            node.queue = id;
+            node.prev = tail;
+            node.next = null;
+            if(tail == null)
+                head = node;
+            else
+                tail.next = node;
+            tail = node;
+            size++;
+        }
+
+        private Node<K, V> removeFirst()
+        {
+            Node<K, V> node = head;
+            remove(node);
+            return node;
+        }
+
+        private void remove(Node<K, V> node)
+        {
+            if(node.prev == null)
+                head = node.next;
+            else
+                node.prev.next = node.next;
+            if(node.next == null)
+                tail = node.prev;
+            else
+                node.next.prev = node.prev;
+            node.prev = node.next = null;
+            size--;
+        }
+
+        private void moveToEnd(Node<K, V> node)
+        {
+            if(node == tail)
+                return;
+            remove(node);
+            addLast(node);
+        }
+    }
+
+    // a count-min sketch of 4 rows of saturating counters, halved periodically
+    // so that the frequencies reflect recent use
+    private static class FrequencySketch
+    {
+        private final static int DEPTH = 4, MAX_COUNT = 15;
+        private final static long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private final byte[] counters;
+        private final int mask, sampleSize;
+        private int additions = 0;
+
+        private FrequencySketch(int maximum)
+        {
+            // ~4 counters per entry per row keeps collisions low between resets
+            int width = Integer.highestOneBit(Math.max(16, maximum - 1)) << 3;
+            this.counters = new byte[width * DEPTH];
+            this.mask = width - 1;
+            this.sampleSize = 10 * maximum;
+        }
+
+        private int frequency(int hash)
+        {
+            int min = MAX_COUNT;
+            for(int i = 0; i < DEPTH; i++)
+                min = Math.min(min, counters[index(hash, i)]);
+            return min;
+        }
+
+        private void increment(int hash)
+        {
+            boolean added = false;
+            for(int i = 0; i < DEPTH; i++)
+            {
+                int idx = index(hash, i);
+                if(counters[idx] < MAX_COUNT)
+                {
+                    counters[idx]++;
+                    added = true;
+                }
+            }
+            if(added && ++additions >= sampleSize)
+                reset();
+        }
+
+        private void reset()
+        {
+            for(int i = 0; i < counters.length; i++)
+                counters[i] >>= 1;
+            additions /= 2;
+        }
+
+        private int index(int hash, int row)
+        {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h ^= h >>> 32;
+            return row * (mask + 1) + ((int) h & mask);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed number of threads taking tasks from a bounded queue, for blocking work
+ * that must not pile up without limit. A task that runs longer than the timeout
+ * is counted, but left to finish: interrupting it could close the file channels
+ * of a database it is reading, so callers that must not wait that long time out
+ * on their futures instead.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class BoundedExecutor implements Executor
+{
+    private final ThreadPoolExecutor pool;
+    private final ScheduledExecutorService timer;
+    private final long timeout;
+    private final TimeUnit unit;
+    private final LongAdder completed = new LongAdder(), rejected = new LongAdder(), timedOut = new LongAdder();
+    private volatile long lastMinute = 0L;
+
+    /**
+     * @param name the prefix of the thread names
+     * @param threads the number of tasks run at once
+     * @param queueSize the number of tasks that can wait for a thread
+     * @param timeout how long a task can run before it is counted as timed out
+     * @param unit the unit of the timeout
+     */
+    public BoundedExecutor(String name, int threads, int queueSize, long timeout, TimeUnit unit)
+    {
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r ->
+        {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread t = new Thread(r, name + "-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timeout = timeout;
+        this.unit = unit;
+        long[] previous = { 0L };
+        timer.scheduleAtFixedRate(() ->
+        {
+            long now = completed.sum();
+            lastMinute = now - previous[0];
+            previous[0] = now;
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Queues a task, unless the queue is full
+     *
+     * @param task the task to run
+     * @return false if the task was rejected
+     */
+    public boolean submit(Runnable task)
+    {
+        try
+        {
+            execute(task);
+            return true;
+        }
+        catch(RejectedExecutionException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Queues a task, for use as the executor of asynchronous stages
+     *
+     * @param task the task to run
+     * @throws RejectedExecutionException if the queue is full
+     */
+    @Override
+    public void execute(Runnable task)
+    {
+        try
+        {
+            pool.execute(() -> run(task));
+        }
+        catch(RejectedExecutionException ex)
+        {
+            rejected.increment();
+            throw ex;
+        }
+    }
+
+    public String getStats()
+    {
+        return String.format("%d running, %d queued, %d done (%d in the last minute), %d rejected, %d timed out",
+                pool.getActiveCount(), pool.getQueue().size(), completed.sum(), lastMinute, rejected.sum(), timedOut.sum());
+    }
+
+    /**
+     * Stops taking tasks, and waits a while for those already taken to finish
+     *
+     * @param wait how long to wait
+     * @param unit the unit of the wait
+     */
+    public void shutdown(long wait, TimeUnit unit)
+    {
+        pool.shutdown();
+        try
+        {
+            pool.awaitTermination(wait, unit);
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        timer.shutdownNow();
+    }
+
+    private void run(Runnable task)
+    {
+        ScheduledFuture<?> watchdog = timer.schedule(timedOut::increment, timeout, unit);
+        try
+        {
+            task.run();
+        }
+        finally
+        {
+            watchdog.cancel(false);
+            completed.increment();
+        }
+    }
+}
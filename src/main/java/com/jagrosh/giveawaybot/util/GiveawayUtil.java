@@ -18,11 +18,13 @@ package com.jagrosh.giveawaybot.util;
 import com.jagrosh.giveawaybot.Constants;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.MessageReaction;
 import net.dv8tion.jda.api.entities.User;
@@ -55,4 +57,50 @@ public class GiveawayUtil
         }
         return winlist;
     }
+    
+    public static long[] selectWinners(long[] ids, int winners)
+    {
+        // the first picks of a shuffle, on a copy so that the ids keep their order
+        long[] pool = ids.clone();
+        int count = Math.min(winners, pool.length);
+        shuffle(pool, 0, count);
+        return Arrays.copyOf(pool, count);
+    }
+    
+    /**
+     * Selects winners by id, resolving each round of picks; ids that do not
+     * resolve are passed over, and more are picked in their place
+     * 
+     * @param <T> the resolved winner
+     * @param ids the ids of the entrants
+     * @param winners the number of winners
+     * @param resolve looks up picked ids, leaving out those it cannot find
+     * @return the winners, fewer only if not enough ids resolve
+     */
+    public static <T> List<T> selectWinners(long[] ids, int winners, Function<long[], List<T>> resolve)
+    {
+        long[] pool = ids.clone();
+        List<T> winlist = new ArrayList<>();
+        int picked = 0;
+        while(winlist.size() < winners && picked < pool.length)
+        {
+            int count = Math.min(winners - winlist.size(), pool.length - picked);
+            shuffle(pool, picked, count);
+            winlist.addAll(resolve.apply(Arrays.copyOfRange(pool, picked, picked + count)));
+            picked += count;
+        }
+        return winlist;
+    }
+    
+    // shuffles count picks into place from the given index onward
+    private static void shuffle(long[] pool, int from, int count)
+    {
+        for(int i = from; i < from + count; i++)
+        {
+            int j = i + (int)(randDouble() * (pool.length - i));
+            long tmp = pool[i];
+            pool[i] = pool[j];
+            pool[j] = tmp;
+        }
+    }
 }
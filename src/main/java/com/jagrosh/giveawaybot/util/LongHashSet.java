@@ -0,0 +1,209 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.util;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * An open-addressing hash set of primitive longs, using linear probing and
+ * backward-shift deletion. Values are stored inline in a long[], so an entry
+ * costs 8-16 bytes instead of the ~50 of a boxed HashSet entry. Not thread-safe.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class LongHashSet
+{
+    private final static int MIN_CAPACITY = 8;
+    private final static long EMPTY = 0L; // zero is tracked separately
+
+    private long[] table;
+    private int mask, size, resizeAt;
+    private boolean hasZero = false;
+
+    public LongHashSet()
+    {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashSet(int expected)
+    {
+        allocate(capacityFor(expected));
+    }
+
+    public boolean add(long value)
+    {
+        if(value == EMPTY)
+        {
+            if(hasZero)
+                return false;
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int i = slot(value);
+        while(table[i] != EMPTY)
+        {
+            if(table[i] == value)
+                return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        if(++size > resizeAt)
+            rehash(table.length << 1);
+        return true;
+    }
+
+    public boolean remove(long value)
+    {
+        if(value == EMPTY)
+        {
+            if(!hasZero)
+                return false;
+            hasZero = false;
+            size--;
+            return true;
+        }
+        int i = slot(value);
+        while(table[i] != EMPTY)
+        {
+            if(table[i] == value)
+            {
+                shiftBack(i);
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public boolean contains(long value)
+    {
+        if(value == EMPTY)
+            return hasZero;
+        int i = slot(value);
+        while(table[i] != EMPTY)
+        {
+            if(table[i] == value)
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(table, EMPTY);
+        hasZero = false;
+        size = 0;
+    }
+
+    public void forEach(LongConsumer consumer)
+    {
+        if(hasZero)
+            consumer.accept(EMPTY);
+        for(long v: table)
+            if(v != EMPTY)
+                consumer.accept(v);
+    }
+
+    public long[] toArray()
+    {
+        long[] arr = new long[size];
+        int i = 0;
+        if(hasZero)
+            arr[i++] = EMPTY;
+        for(long v: table)
+            if(v != EMPTY)
+                arr[i++] = v;
+        return arr;
+    }
+
+    public long[] toSortedArray()
+    {
+        long[] arr = toArray();
+        Arrays.sort(arr);
+        return arr;
+    }
+
+    // backward-shift deletion keeps probe sequences intact without tombstones
+    private void shiftBack(int hole)
+    {
+        int i = hole;
+        while(true)
+        {
+            i = (i + 1) & mask;
+            long v = table[i];
+            if(v == EMPTY)
+                break;
+            int home = slot(v);
+            // move v into the hole if its home slot is not between the hole and i (cyclically)
+            if(((i - home) & mask) >= ((i - hole) & mask))
+            {
+                table[hole] = v;
+                hole = i;
+            }
+        }
+        table[hole] = EMPTY;
+    }
+
+    private int slot(long value)
+    {
+        // snowflakes differ mostly in their low bits, so mix before masking
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] old = table;
+        allocate(capacity);
+        for(long v: old)
+            if(v != EMPTY)
+            {
+                int i = slot(v);
+                while(table[i] != EMPTY)
+                    i = (i + 1) & mask;
+                table[i] = v;
+            }
+    }
+
+    private void allocate(int capacity)
+    {
+        table = new long[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * 0.75);
+    }
+
+    private static int capacityFor(int expected)
+    {
+        int capacity = MIN_CAPACITY;
+        while(capacity * 0.75 < expected)
+            capacity <<= 1;
+        return capacity;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * An immutable, sorted set of longs stored as varint-encoded deltas. Values are
+ * split into blocks of {@value #BLOCK_SIZE}; the first value of each block is
+ * kept whole so that lookups can binary search to a block and decode only that
+ * block. User ids are snowflakes, so sorted neighbours share their high
+ * (timestamp) bits and most deltas fit in 5-7 bytes instead of 8.
+ *
+ * The same layout is used in memory and when written out, so reading a set
+ * back is a single copy.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class PackedLongSet
+{
+    public final static PackedLongSet EMPTY = new PackedLongSet(new long[0], new int[0], new byte[0], 0);
+    private final static int BLOCK_SIZE = 64;
+    private final static int FORMAT_VERSION = 1;
+
+    private final long[] blockFirst;
+    private final int[] blockOffset;
+    private final byte[] data;
+    private final int size;
+
+    private PackedLongSet(long[] blockFirst, int[] blockOffset, byte[] data, int size)
+    {
+        this.blockFirst = blockFirst;
+        this.blockOffset = blockOffset;
+        this.data = data;
+        this.size = size;
+    }
+
+    /**
+     * Packs a sorted array of distinct values
+     *
+     * @param sorted values in ascending order, without duplicates
+     * @return the packed set
+     */
+    public static PackedLongSet of(long[] sorted)
+    {
+        return of(sorted, sorted.length);
+    }
+
+    public static PackedLongSet of(long[] sorted, int length)
+    {
+        if(length == 0)
+            return EMPTY;
+        int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long[] firsts = new long[blocks];
+        int[] offsets = new int[blocks];
+        ByteSink sink = new ByteSink(length * 6);
+        for(int i = 0; i < length; i++)
+        {
+            if(i > 0 && sorted[i] <= sorted[i-1])
+                throw new IllegalArgumentException("Values must be sorted and distinct");
+            if(i % BLOCK_SIZE == 0)
+            {
+                firsts[i / BLOCK_SIZE] = sorted[i];
+                offsets[i / BLOCK_SIZE] = sink.length;
+            }
+            else
+                sink.writeVarLong(sorted[i] - sorted[i-1]);
+        }
+        return new PackedLongSet(firsts, offsets, sink.toArray(), length);
+    }
+
+    public boolean contains(long value)
+    {
+        int block = Arrays.binarySearch(blockFirst, value);
+        if(block >= 0)
+            return true;
+        block = -block - 2;
+        if(block < 0)
+            return false;
+        long current = blockFirst[block];
+        int pos = blockOffset[block];
+        int count = blockLength(block);
+        for(int i = 1; i < count; i++)
+        {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                b = data[pos++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            }
+            while(b < 0);
+            current += delta;
+            if(current == value)
+                return true;
+            if(current > value)
+                return false;
+        }
+        return false;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public void forEach(LongConsumer consumer)
+    {
+        int pos = 0;
+        for(int block = 0; block < blockFirst.length; block++)
+        {
+            long current = blockFirst[block];
+            consumer.accept(current);
+            int count = blockLength(block);
+            for(int i = 1; i < count; i++)
+            {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do
+                {
+                    b = data[pos++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                }
+                while(b < 0);
+                current += delta;
+                consumer.accept(current);
+            }
+        }
+    }
+
+    public long[] toArray()
+    {
+        long[] arr = new long[size];
+        int[] i = {0};
+        forEach(v -> arr[i[0]++] = v);
+        return arr;
+    }
+
+    /**
+     * @return the approximate number of bytes used by this set
+     */
+    public long getMemorySize()
+    {
+        return blockFirst.length * 12L + data.length + 32;
+    }
+
+    public void writeTo(DataOutput out) throws IOException
+    {
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(size);
+        out.writeInt(blockFirst.length);
+        for(int i = 0; i < blockFirst.length; i++)
+        {
+            out.writeLong(blockFirst[i]);
+            out.writeInt(blockOffset[i]);
+        }
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Reads a set written by {@link #writeTo(DataOutput)}, advancing the buffer
+     * past it
+     *
+     * @param in the buffer to read from
+     * @return the set
+     * @throws IOException if the set was written in an unknown format
+     */
+    public static PackedLongSet readFrom(ByteBuffer in) throws IOException
+    {
+        int version = in.get();
+        if(version != FORMAT_VERSION)
+            throw new IOException("Unsupported packed set version: " + version);
+        int size = in.getInt();
+        int blocks = in.getInt();
+        if(blocks < 0 || blocks > in.remaining() / (Long.BYTES + Integer.BYTES))
+            throw new BufferUnderflowException();
+        long[] firsts = new long[blocks];
+        int[] offsets = new int[blocks];
+        for(int i = 0; i < blocks; i++)
+        {
+            firsts[i] = in.getLong();
+            offsets[i] = in.getInt();
+        }
+        int length = in.getInt();
+        if(length < 0 || length > in.remaining())
+            throw new BufferUnderflowException();
+        byte[] data = new byte[length];
+        in.get(data);
+        return size == 0 ? EMPTY : new PackedLongSet(firsts, offsets, data, size);
+    }
+
+    private int blockLength(int block)
+    {
+        return block == blockFirst.length - 1 ? size - block * BLOCK_SIZE : BLOCK_SIZE;
+    }
+
+    private static class ByteSink
+    {
+        private byte[] buf;
+        private int length = 0;
+
+        private ByteSink(int initial)
+        {
+            buf = new byte[Math.max(16, initial)];
+        }
+
+        private void writeVarLong(long v)
+        {
+            if(length + 10 > buf.length)
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            while((v & ~0x7FL) != 0)
+            {
+                buf[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[length++] = (byte) v;
+        }
+
+        private byte[] toArray()
+        {
+            return Arrays.copyOf(buf, length);
+        }
+    }
+}
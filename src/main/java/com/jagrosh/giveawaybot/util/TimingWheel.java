@@ -0,0 +1,194 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A hierarchical timing wheel of ids keyed by a deadline in whole seconds.
+ * Level 0 has one slot per second for the next 64 seconds, level 1 one slot per
+ * 64 seconds, and so on; a timer is stored at the lowest level whose range
+ * covers it, and moves down a level each time the wheel passes into its slot.
+ * Scheduling and cancelling are O(1), and advancing one second only touches the
+ * timers that are due or need to move down.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class TimingWheel
+{
+    private final static int BITS = 6, SLOTS = 1 << BITS, MASK = SLOTS - 1, LEVELS = 6;
+
+    private final Timer[][] wheels = new Timer[LEVELS][SLOTS];
+    private final Map<Long, Timer> timers = new HashMap<>();
+    private long current;
+
+    /**
+     * @param now the current time, in epoch seconds
+     */
+    public TimingWheel(long now)
+    {
+        this.current = now;
+    }
+
+    /**
+     * Schedules an id, replacing any previous deadline it had
+     *
+     * @param id the id to schedule
+     * @param deadline the epoch second at which the id is due
+     */
+    public synchronized void schedule(long id, long deadline)
+    {
+        cancel(id);
+        Timer t = new Timer(id, deadline);
+        timers.put(id, t);
+        place(t);
+    }
+
+    public synchronized boolean cancel(long id)
+    {
+        Timer t = timers.remove(id);
+        if(t == null)
+            return false;
+        unlink(t);
+        return true;
+    }
+
+    public synchronized boolean contains(long id)
+    {
+        return timers.containsKey(id);
+    }
+
+    public synchronized int size()
+    {
+        return timers.size();
+    }
+
+    /**
+     * Moves the wheel forward and removes every timer that is now due
+     *
+     * @param now the current time, in epoch seconds
+     * @return the ids that are due, in deadline order
+     */
+    public synchronized long[] advance(long now)
+    {
+        LongList due = new LongList();
+        // anything scheduled in the past waits in the current slot
+        collect(wheels[0][(int) (current & MASK)], due);
+        while(current < now)
+        {
+            if(timers.isEmpty())
+            {
+                current = now;
+                break;
+            }
+            current++;
+            // entering a new slot of a higher level moves its timers down
+            for(int level = 1; level < LEVELS && (current & ((1L << (BITS * level)) - 1)) == 0; level++)
+                cascade(level, (int) ((current >> (BITS * level)) & MASK));
+            collect(wheels[0][(int) (current & MASK)], due);
+        }
+        return due.toArray();
+    }
+
+    private void collect(Timer head, LongList due)
+    {
+        for(Timer t = head; t != null; )
+        {
+            Timer next = t.next;
+            if(t.deadline <= current)
+            {
+                unlink(t);
+                timers.remove(t.id);
+                due.add(t.id);
+            }
+            t = next;
+        }
+    }
+
+    private void cascade(int level, int slot)
+    {
+        Timer t = wheels[level][slot];
+        wheels[level][slot] = null;
+        while(t != null)
+        {
+            Timer next = t.next;
+            t.prev = t.next = null;
+            place(t);
+            t = next;
+        }
+    }
+
+    private void place(Timer t)
+    {
+        long deadline = Math.max(t.deadline, current);
+        int level = 0;
+        while(level < LEVELS - 1 && (deadline >> (BITS * level)) - (current >> (BITS * level)) >= SLOTS)
+            level++;
+        // beyond the top level's range, park in its furthest slot and re-place on the way down
+        if((deadline >> (BITS * level)) - (current >> (BITS * level)) >= SLOTS)
+            deadline = ((current >> (BITS * level)) + SLOTS - 1) << (BITS * level);
+        t.level = level;
+        t.slot = (int) ((deadline >> (BITS * level)) & MASK);
+        t.next = wheels[level][t.slot];
+        if(t.next != null)
+            t.next.prev = t;
+        wheels[level][t.slot] = t;
+    }
+
+    private void unlink(Timer t)
+    {
+        if(t.prev == null)
+            wheels[t.level][t.slot] = t.next;
+        else
+            t.prev.next = t.next;
+        if(t.next != null)
+            t.next.prev = t.prev;
+        t.prev = t.next = null;
+    }
+
+    private static class Timer
+    {
+        private final long id, deadline;
+        private int level, slot;
+        private Timer prev, next;
+
+        private Timer(long id, long deadline)
+        {
+            this.id = id;
+            this.deadline = deadline;
+        }
+    }
+
+    private static class LongList
+    {
+        private long[] values = new long[8];
+        private int size = 0;
+
+        private void add(long value)
+        {
+            if(size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        private long[] toArray()
+        {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import com.jagrosh.giveawaybot.util.BoundedCache;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class BoundedCacheTest
+{
+    @Test
+    public void testBounded()
+    {
+        BoundedCache<Long, String> cache = new BoundedCache<>(1000, 10, TimeUnit.SECONDS);
+        for(long i = 0; i < 100000; i++)
+            assertEquals("v" + i, cache.get(i, k -> "v" + k));
+        assertEquals(1000, cache.size());
+        assertEquals(99000, cache.getStats().evictions);
+        assertEquals(100000, cache.getStats().misses);
+    }
+
+    @Test
+    public void testFrequentSurvivesScan()
+    {
+        BoundedCache<Long, String> cache = new BoundedCache<>(1000, 10, TimeUnit.SECONDS);
+        AtomicInteger loads = new AtomicInteger();
+        for(int round = 0; round < 20; round++)
+            for(long i = 0; i < 100; i++)
+                cache.get(i, k -> { loads.incrementAndGet(); return "hot"; });
+        // a scan of one-off keys should not push out the keys in use
+        for(long i = 1000; i < 20000; i++)
+            cache.get(i, k -> "cold");
+        loads.set(0);
+        for(long i = 0; i < 100; i++)
+            cache.get(i, k -> { loads.incrementAndGet(); return "hot"; });
+        assertEquals(0, loads.get());
+    }
+
+    @Test
+    public void testNegativeEntries() throws Exception
+    {
+        BoundedCache<Long, String> cache = new BoundedCache<>(100, 50, TimeUnit.MILLISECONDS);
+        AtomicInteger loads = new AtomicInteger();
+        assertNull(cache.get(1L, k -> { loads.incrementAndGet(); return null; }));
+        assertNull(cache.get(1L, k -> { loads.incrementAndGet(); return null; }));
+        assertEquals(1, loads.get());
+        Thread.sleep(100);
+        assertEquals("found", cache.get(1L, k -> { loads.incrementAndGet(); return "found"; }));
+        assertEquals(2, loads.get());
+        cache.invalidate(1L);
+        assertNull(cache.getIfPresent(1L));
+    }
+
+    @Test
+    public void testInvalidateDuringLoad() throws Exception
+    {
+        // a removal while the old value is being loaded must not be undone by the load
+        BoundedCache<Long, String> cache = new BoundedCache<>(100, 50, TimeUnit.MILLISECONDS);
+        assertEquals("stale", cache.get(1L, k -> 
+        {
+            cache.invalidate(1L);
+            return "stale";
+        }));
+        assertNull(cache.getIfPresent(1L));
+        assertEquals("fresh", cache.get(1L, k -> "fresh"));
+        assertEquals("fresh", cache.getIfPresent(1L));
+
+        // expired negative entries are removed when they are next looked up
+        assertNull(cache.get(2L, k -> null));
+        assertEquals(2, cache.size());
+        Thread.sleep(100);
+        assertNull(cache.getIfPresent(2L));
+        assertEquals(1, cache.size());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import com.jagrosh.giveawaybot.util.BoundedExecutor;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class BoundedExecutorTest
+{
+    @Test
+    public void testRejectWhenFull() throws Exception
+    {
+        BoundedExecutor executor = new BoundedExecutor("test", 1, 1, 10, TimeUnit.SECONDS);
+        CountDownLatch release = new CountDownLatch(1), started = new CountDownLatch(1);
+        assertTrue(executor.submit(() -> 
+        {
+            started.countDown();
+            await(release);
+        }));
+        started.await();
+        assertTrue(executor.submit(() -> {}));
+        assertFalse(executor.submit(() -> {}));
+        assertTrue(executor.getStats().contains("1 running, 1 queued"));
+        release.countDown();
+        executor.shutdown(10, TimeUnit.SECONDS);
+        assertTrue(executor.getStats().contains("2 done"));
+        assertTrue(executor.getStats().contains("1 rejected"));
+    }
+
+    @Test
+    public void testTimeout() throws Exception
+    {
+        // a slow task is counted, but not interrupted
+        BoundedExecutor executor = new BoundedExecutor("test", 1, 10, 100, TimeUnit.MILLISECONDS);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean finished = new AtomicBoolean();
+        executor.submit(() -> finished.set(await(release)));
+        Thread.sleep(300);
+        assertTrue(executor.getStats().contains("1 timed out"));
+        release.countDown();
+        executor.shutdown(10, TimeUnit.SECONDS);
+        assertTrue(finished.get());
+        assertTrue(executor.getStats().contains("1 done"));
+    }
+
+    // false if interrupted while waiting
+    private static boolean await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+            return true;
+        }
+        catch(InterruptedException ex)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import com.jagrosh.giveawaybot.data.CachedUser;
+import com.jagrosh.giveawaybot.data.Giveaway;
+import com.jagrosh.giveawaybot.entities.CompactSummary;
+import com.jagrosh.giveawaybot.entities.PremiumLevel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class CompactSummaryTest
+{
+    private final static long FIRST_USER = 200000000000000000L;
+
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        Giveaway g = new Giveaway(FIRST_USER - 5, Instant.ofEpochSecond(1650000000L), 2, "prize", null);
+        g.setMessageId(4L);
+        CachedUser host = user(FIRST_USER - 5, "host", null);
+        List<CachedUser> entries = new ArrayList<>();
+        for(int i = 0; i < 3000; i++)
+            entries.add(user(FIRST_USER + i * 997L, "user" + (i % 10), i % 3 == 0 ? null : "a_1234"));
+        entries.get(7).setPremiumLevel(PremiumLevel.BOOST);
+        List<CachedUser> winners = Arrays.asList(entries.get(9), entries.get(2));
+
+        for(CompactSummary.Compression c: CompactSummary.Compression.values())
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            CompactSummary.write(bytes, c, g, host, winners, consumer -> entries.forEach(consumer));
+            // ids differ by a few bytes and names are shared
+            assertTrue(c + ": " + bytes.size(), bytes.size() < entries.size() * 12);
+
+            CompactSummary.Reader reader = new CompactSummary.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+            assertEquals(4L, reader.getGiveaway().getMessageId());
+            assertEquals("prize", reader.getGiveaway().getPrize());
+            assertNull(reader.getGiveaway().getDescription());
+            assertEquals(2, reader.getGiveaway().getWinners());
+            assertEquals(1650000000L, reader.getGiveaway().getEndTime());
+            assertEquals("host", reader.getHost().getUsername());
+            assertEquals(2, reader.getWinners().size());
+            assertEquals(entries.get(2).getId(), reader.getWinners().get(1).getId());
+            List<CachedUser> read = new ArrayList<>();
+            reader.forEachEntry(read::add);
+            assertEquals(entries.size(), read.size());
+            for(int i = 0; i < entries.size(); i++)
+            {
+                assertEquals(entries.get(i).getId(), read.get(i).getId());
+                assertEquals(entries.get(i).getUsername(), read.get(i).getUsername());
+                assertEquals(entries.get(i).getDiscriminator(), read.get(i).getDiscriminator());
+                assertEquals(entries.get(i).getAvatar(), read.get(i).getAvatar());
+                assertEquals(entries.get(i).getPremiumLevel(), read.get(i).getPremiumLevel());
+            }
+        }
+    }
+
+    @Test
+    public void testNotCompact()
+    {
+        try
+        {
+            new CompactSummary.Reader(new ByteArrayInputStream("{\"giveaway\":{}}".getBytes()));
+            fail("Read a json summary as compact");
+        }
+        catch(IOException expected) {}
+    }
+
+    private static CachedUser user(long id, String name, String avatar)
+    {
+        CachedUser u = new CachedUser();
+        u.setId(id);
+        u.setUsername(name);
+        u.setDiscriminator("0");
+        u.setAvatar(avatar);
+        return u;
+    }
+}
@@ -15,9 +15,22 @@
  */
 package com.jagrosh.giveawaybot;
 
+import com.jagrosh.giveawaybot.data.CachedUser;
 import com.jagrosh.giveawaybot.data.Database;
+import com.jagrosh.giveawaybot.data.EntryRegistry;
 import com.jagrosh.giveawaybot.data.Giveaway;
+import com.jagrosh.giveawaybot.data.MemoryStorage;
+import com.jagrosh.giveawaybot.data.SettingsCache;
+import com.jagrosh.giveawaybot.entities.PremiumLevel;
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -29,12 +42,18 @@ import org.junit.Before;
 public class DatabaseTest
 {
     private final static long USER = 1L, GUILD = 2L, CHANNEL = 3L, MESSAGE = 4L;
-    //Database db;
+    private Database db;
     
     @Before
     public void initialize()
     {
-        //Database db = new Database("", "testuser", "testpass");
+        db = new Database(new MemoryStorage());
+    }
+    
+    @After
+    public void shutdown()
+    {
+        db.shutdown();
     }
     
     @Test
@@ -44,6 +63,146 @@ public class DatabaseTest
         g.setMessageId(MESSAGE);
         g.setGuildId(GUILD);
         g.setChannelId(CHANNEL);
-        //db.createGiveaway(g);
+        assertNull(db.getGiveaway(MESSAGE));
+        db.createGiveaway(g);
+        assertEquals("prize", db.getGiveaway(MESSAGE).getPrize());
+        assertEquals(1, db.countGiveawaysByGuild(GUILD));
+        assertEquals(1, db.getGiveawaysByChannel(CHANNEL).size());
+        db.removeGiveaway(g);
+        assertNull(db.getGiveaway(MESSAGE));
+        assertEquals(0, db.countAllGiveaways());
+        
+        // counters are rebuilt from storage, and removing twice only counts once
+        MemoryStorage storage = new MemoryStorage();
+        storage.saveGiveaway(g);
+        Database reopened = new Database(storage);
+        assertEquals(1, reopened.countGiveawaysByChannel(CHANNEL));
+        reopened.removeGiveaway(g);
+        reopened.removeGiveaway(g);
+        assertEquals(0, reopened.countGiveawaysByGuild(GUILD));
+        assertEquals(0, reopened.countAllGiveaways());
+        reopened.shutdown();
+    }
+    
+    @Test
+    public void testUserOrder()
+    {
+        MemoryStorage storage = new MemoryStorage();
+        for(long id = 10; id < 20; id++)
+            storage.updateUser(id, u -> u.setUsername("user"));
+        List<CachedUser> users = storage.getUsers(new long[]{ 15L, 12L, 99L, 18L, 10L });
+        assertEquals(4, users.size());
+        assertEquals(15L, users.get(0).getId());
+        assertEquals(12L, users.get(1).getId());
+        assertEquals(18L, users.get(2).getId());
+        assertEquals(10L, users.get(3).getId());
+    }
+    
+    @Test
+    public void testSettingsAndPremium()
+    {
+        assertSame(SettingsCache.DEFAULT, db.getSettings(GUILD));
+        assertSame(SettingsCache.DEFAULT, db.getSettings(GUILD + 1));
+        db.setGuildColor(GUILD, Color.RED);
+        assertEquals(GUILD, db.getSettings(GUILD).getGuildId());
+        assertEquals(Color.RED, db.getSettings(GUILD).getColor());
+        assertSame(SettingsCache.DEFAULT, db.getSettings(GUILD + 1));
+        
+        db.setAutomaticGuildSettings(GUILD, Instant.now(), null);
+        db.updatePremiumLevel(USER, "user", "0001", null, PremiumLevel.PATRON);
+        assertEquals(PremiumLevel.PATRON, db.getPremiumLevel(GUILD, USER));
+        assertEquals(PremiumLevel.NONE, db.getPremiumLevel(GUILD));
+        assertEquals(1, db.getAllPremiumUsers().size());
+        db.removePremium(USER);
+        assertEquals(PremiumLevel.NONE, db.getPremiumLevel(GUILD, USER));
+    }
+    
+    @Test
+    public void testOwnerPremium()
+    {
+        MemoryStorage storage = new MemoryStorage();
+        storage.updateSettings(GUILD, gs -> gs.setOwnerId(USER));
+        storage.updateUser(USER, u -> u.setPremiumLevel(PremiumLevel.DONATOR));
+        Database reopened = new Database(storage);
+        assertEquals(PremiumLevel.DONATOR, reopened.getPremiumLevel(GUILD));
+        assertEquals(PremiumLevel.DONATOR, reopened.getPremiumLevel(GUILD, 5L));
+        reopened.updatePremiumLevel(5L, "other", "0005", null, PremiumLevel.SUPER);
+        assertEquals(PremiumLevel.SUPER, reopened.getPremiumLevel(GUILD, 5L));
+        reopened.removePremium(USER);
+        assertEquals(PremiumLevel.NONE, reopened.getPremiumLevel(GUILD));
+        reopened.shutdown();
+    }
+    
+    @Test
+    public void testSnapshot() throws IOException
+    {
+        Path file = Files.createTempFile("state", ".snapshot");
+        MemoryStorage storage = new MemoryStorage();
+        Database first = new Database(storage, null, file.toString());
+        Giveaway g = new Giveaway(USER, Instant.now(), 1, "prize", null);
+        g.setMessageId(MESSAGE);
+        g.setGuildId(GUILD);
+        g.setChannelId(CHANNEL);
+        first.createGiveaway(g);
+        first.setGuildColor(GUILD, Color.RED);
+        first.updatePremiumLevel(USER, "user", "0001", null, PremiumLevel.PATRON);
+        first.shutdown();
+        assertTrue(storage.getSnapshotStamp() != 0L);
+        
+        // the snapshot matches, so the caches start warm
+        Database second = new Database(storage, null, file.toString());
+        assertEquals(1, second.getGiveawayCacheStats().size);
+        assertEquals(1, second.getSettingsCacheStats().size);
+        assertEquals(Color.RED, second.getSettings(GUILD).getColor());
+        assertEquals(PremiumLevel.PATRON, second.getPremiumLevel(0L, USER));
+        
+        // the first write makes it stale
+        second.removeGiveaway(g);
+        assertEquals(0L, storage.getSnapshotStamp());
+        second.writeSnapshot();
+        long stamp = storage.getSnapshotStamp();
+        assertTrue(stamp != 0L);
+        
+        // one that still matches is not taken again
+        second.writeSnapshot();
+        assertEquals(stamp, storage.getSnapshotStamp());
+        storage.saveGiveaway(g);
+        storage.setSnapshotStamp(0L);
+        
+        Database third = new Database(storage, null, file.toString());
+        assertEquals(0, third.getGiveawayCacheStats().size);
+        assertEquals(0, third.getSettingsCacheStats().size);
+        Files.delete(file);
+    }
+    
+    @Test
+    public void testUserCompaction()
+    {
+        long stale = 10L, host = 11L, entrant = 12L, premium = 13L, recent = 14L, unseen = 15L;
+        Instant old = Instant.now().minus(40, ChronoUnit.DAYS);
+        MemoryStorage storage = new MemoryStorage();
+        for(long id = stale; id <= recent; id++)
+            storage.updateUser(id, u -> u.setLastSeen(old));
+        storage.updateUser(premium, u -> u.setPremiumLevel(PremiumLevel.BOOST));
+        storage.updateUser(recent, u -> u.setLastSeen(Instant.now()));
+        storage.updateUser(unseen, u -> u.setUsername("legacy"));
+        Giveaway g = new Giveaway(host, Instant.now(), 1, "prize", null);
+        g.setMessageId(MESSAGE);
+        storage.saveGiveaway(g);
+        EntryRegistry entries = new EntryRegistry(storage::getEntries);
+        entries.add(MESSAGE, entrant);
+        entries.flush(storage::writeEntries);
+        
+        Database compacting = new Database(storage);
+        assertEquals(1, compacting.compactUsers(30, TimeUnit.DAYS));
+        assertNull(storage.getUser(stale));
+        for(long id = host; id <= unseen; id++)
+            assertNotNull(storage.getUser(id));
+        
+        // referenced users are kept for another ttl, even once they are no longer referenced
+        storage.removeGiveaway(MESSAGE);
+        assertEquals(0, compacting.compactUsers(30, TimeUnit.DAYS));
+        assertTrue(compacting.getStateStats().contains("1 users compacted"));
+        compacting.shutdown();
     }
 }
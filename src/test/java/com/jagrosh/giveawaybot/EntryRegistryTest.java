@@ -0,0 +1,197 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import com.jagrosh.giveawaybot.data.EntryJournal;
+import com.jagrosh.giveawaybot.data.EntryRegistry;
+import com.jagrosh.giveawaybot.data.MemoryStorage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class EntryRegistryTest
+{
+    private final static long GIVEAWAY = 4L;
+
+    @Test
+    public void testAddRemove()
+    {
+        EntryRegistry registry = new EntryRegistry(id -> Arrays.asList(10L, 11L));
+        assertEquals(2, registry.count(GIVEAWAY));
+        assertEquals(-1, registry.add(GIVEAWAY, 10L));
+        assertEquals(3, registry.add(GIVEAWAY, 12L));
+        assertTrue(registry.remove(GIVEAWAY, 10L));
+        assertFalse(registry.remove(GIVEAWAY, 10L));
+        assertFalse(registry.contains(GIVEAWAY, 10L));
+        assertEquals(2, registry.count(GIVEAWAY));
+    }
+
+    @Test
+    public void testLookupWithoutLoading()
+    {
+        AtomicInteger loads = new AtomicInteger();
+        MemoryStorage storage = new MemoryStorage()
+        {
+            @Override
+            public Collection<Long> getEntries(long giveawayId)
+            {
+                loads.incrementAndGet();
+                return super.getEntries(giveawayId);
+            }
+        };
+        EntryRegistry filler = new EntryRegistry(id -> Collections.emptySet());
+        for(long user = 0; user < 1000; user++)
+            filler.add(GIVEAWAY, user);
+        filler.flush(storage::writeEntries);
+
+        // clicks are answered by key lookups and the stored count
+        EntryRegistry registry = new EntryRegistry(storage, null);
+        assertEquals(1000, registry.count(GIVEAWAY));
+        assertEquals(-1, registry.add(GIVEAWAY, 10L));
+        assertEquals(1001, registry.add(GIVEAWAY, 5000L));
+        assertTrue(registry.remove(GIVEAWAY, 11L));
+        assertFalse(registry.remove(GIVEAWAY, 11L));
+        assertFalse(registry.contains(GIVEAWAY, 11L));
+        assertEquals(1000, registry.count(GIVEAWAY));
+        assertEquals(0, loads.get());
+
+        // loading in full merges what is known in memory with what is stored
+        long[] users = registry.getUsers(GIVEAWAY);
+        assertEquals(1, loads.get());
+        assertEquals(1000, users.length);
+        assertFalse(Arrays.stream(users).anyMatch(u -> u == 11L));
+        assertTrue(Arrays.stream(users).anyMatch(u -> u == 5000L));
+        registry.flush(storage::writeEntries);
+        assertEquals(1000, storage.countEntries(GIVEAWAY));
+        assertFalse(storage.hasEntry(GIVEAWAY, 11L));
+    }
+
+    @Test
+    public void testParallelClicks() throws Exception
+    {
+        EntryRegistry registry = new EntryRegistry(id -> Collections.emptySet());
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> results = new ArrayList<>();
+        // every user clicks twice, from different threads
+        for(int i = 0; i < 2000; i++)
+        {
+            long user = i / 2;
+            results.add(pool.submit(() -> registry.add(GIVEAWAY, user)));
+        }
+        Set<Integer> counts = new HashSet<>();
+        int rejected = 0;
+        for(Future<Integer> f: results)
+        {
+            int val = f.get();
+            if(val < 0)
+                rejected++;
+            else
+                assertTrue("duplicate count " + val, counts.add(val));
+        }
+        pool.shutdown();
+        assertEquals(1000, rejected);
+        assertEquals(1000, counts.size());
+        assertEquals(1000, registry.count(GIVEAWAY));
+    }
+
+    @Test
+    public void testFlush()
+    {
+        EntryRegistry registry = new EntryRegistry(id -> Collections.emptySet());
+        registry.add(GIVEAWAY, 10L);
+        registry.add(GIVEAWAY, 11L);
+        registry.remove(GIVEAWAY, 11L);
+        List<EntryRegistry.Changes> written = new ArrayList<>();
+        registry.flush(written::addAll);
+        assertEquals(1, written.size());
+        assertArrayEquals(new long[]{10L}, written.get(0).getAdded().toArray());
+        assertTrue(written.get(0).getRemoved().isEmpty());
+
+        // only the change since the last flush is written
+        registry.remove(GIVEAWAY, 10L);
+        written.clear();
+        registry.flush(written::addAll);
+        assertTrue(written.get(0).getAdded().isEmpty());
+        assertArrayEquals(new long[]{10L}, written.get(0).getRemoved().toArray());
+
+        // nothing changed, so nothing is written and the idle giveaway is forgotten
+        written.clear();
+        registry.flush(written::addAll);
+        assertTrue(written.isEmpty());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testLateClicksAfterDiscard()
+    {
+        EntryRegistry registry = new EntryRegistry(id -> Collections.emptySet());
+        registry.add(GIVEAWAY, 10L);
+        registry.discard(GIVEAWAY);
+
+        // a click that raced the end is ignored, and nothing is written for it
+        assertEquals(-1, registry.add(GIVEAWAY, 11L));
+        assertEquals(0, registry.size());
+        List<EntryRegistry.Changes> written = new ArrayList<>();
+        registry.flush(written::addAll);
+        registry.add(GIVEAWAY, 12L);
+        registry.flush(written::addAll);
+        assertTrue(written.isEmpty());
+
+        // forgotten once a full flush has passed
+        registry.flush(written::addAll);
+        assertEquals(1, registry.add(GIVEAWAY, 13L));
+    }
+
+    @Test
+    public void testJournalReplay() throws Exception
+    {
+        Path dir = Files.createTempDirectory("journal");
+        EntryJournal journal = new EntryJournal(dir, 1024);
+        EntryRegistry registry = new EntryRegistry(id -> Collections.emptySet(), journal);
+        for(long user = 0; user < 100; user++)
+            registry.add(GIVEAWAY, user);
+        registry.remove(GIVEAWAY, 7L);
+        journal.close();
+
+        // a new run replays everything, across segments, in order
+        EntryJournal reopened = new EntryJournal(dir, 1024);
+        EntryRegistry replayed = new EntryRegistry(id -> Collections.emptySet());
+        assertEquals(101, reopened.replay((type, giveaway, user) -> replayed.replay(type, giveaway, user)));
+        assertEquals(99, replayed.count(GIVEAWAY));
+        assertFalse(replayed.contains(GIVEAWAY, 7L));
+
+        // once synced, the replayed segments are released
+        reopened.release(reopened.seal());
+        assertEquals(1, reopened.getSegmentCount());
+        reopened.close();
+    }
+}
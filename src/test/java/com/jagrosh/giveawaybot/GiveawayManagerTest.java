@@ -0,0 +1,149 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import com.jagrosh.giveawaybot.data.Database;
+import com.jagrosh.giveawaybot.data.EntryRegistry;
+import com.jagrosh.giveawaybot.data.Giveaway;
+import com.jagrosh.giveawaybot.data.MemoryStorage;
+import com.jagrosh.giveawaybot.entities.EmojiParser;
+import com.jagrosh.giveawaybot.entities.FileUploader;
+import java.io.File;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class GiveawayManagerTest
+{
+    private final static long HOST = 1L, GUILD = 2L, CHANNEL = 3L, MESSAGE = 4L;
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+    private Database db;
+    private Giveaway giveaway;
+    private GiveawayManager manager;
+
+    @Before
+    public void initialize()
+    {
+        // three entrants, of whom 12 has no stored user
+        MemoryStorage storage = new MemoryStorage();
+        giveaway = new Giveaway(HOST, Instant.now(), 2, "prize", null);
+        giveaway.setMessageId(MESSAGE);
+        giveaway.setGuildId(GUILD);
+        giveaway.setChannelId(CHANNEL);
+        storage.saveGiveaway(giveaway);
+        storage.updateUser(HOST, u -> u.setUsername("host"));
+        storage.updateUser(10L, u -> u.setUsername("first"));
+        storage.updateUser(11L, u -> u.setUsername("second"));
+        EntryRegistry filler = new EntryRegistry(id -> Collections.emptySet());
+        for(long user = 10L; user <= 12L; user++)
+            filler.add(MESSAGE, user);
+        filler.flush(storage::writeEntries);
+        db = new Database(storage);
+    }
+
+    @After
+    public void shutdown()
+    {
+        if(manager != null)
+            manager.shutdown();
+        db.shutdown();
+    }
+
+    @Test
+    public void testEnding()
+    {
+        manager = manager(file -> CompletableFuture.completedFuture("https://cdn.example.com/attachments/5/6/giveaway_summary.json"),
+                body -> CompletableFuture.completedFuture(true));
+        assertTrue(manager.endGiveaway(giveaway).join());
+        assertNull(db.getGiveaway(MESSAGE));
+
+        // edited, then announced; the entrant with no stored user is passed over
+        assertEquals(2, sent.size());
+        assertTrue(sent.get(1).contains("<@10>"));
+        assertTrue(sent.get(1).contains("<@11>"));
+        assertFalse(sent.get(1).contains("<@12>"));
+
+        // it is gone, so ending it again does nothing
+        assertFalse(manager.endGiveaway(giveaway).join());
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void testFailedUpload()
+    {
+        // the giveaway still ends, without a summary
+        manager = manager(file -> CompletableFuture.completedFuture(null), body -> CompletableFuture.completedFuture(true));
+        assertTrue(manager.endGiveaway(giveaway).join());
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void testUploadException()
+    {
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("upload failed"));
+        manager = manager(file -> failed, body -> CompletableFuture.completedFuture(true));
+        assertTrue(manager.endGiveaway(giveaway).join());
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void testFailedEdit()
+    {
+        // not announced while the giveaway still shows as running
+        manager = manager(file -> CompletableFuture.completedFuture(null), body -> CompletableFuture.completedFuture(false));
+        assertFalse(manager.endGiveaway(giveaway).join());
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void testTimeout()
+    {
+        manager = manager(file -> CompletableFuture.completedFuture(null), body -> new CompletableFuture<>());
+        long start = System.nanoTime();
+        assertFalse(manager.endGiveaway(giveaway).join());
+        assertTrue(System.nanoTime() - start >= 900_000_000L);
+        assertEquals(1, sent.size());
+    }
+
+    private GiveawayManager manager(Function<File, CompletableFuture<String>> upload, Function<String, CompletableFuture<Boolean>> send)
+    {
+        FileUploader uploader = new FileUploader(Collections.emptyList())
+        {
+            @Override
+            public CompletableFuture<String> uploadFileAsync(File file, String filename)
+            {
+                return upload.apply(file);
+            }
+        };
+        return new GiveawayManager(db, uploader, new EmojiParser(Collections.emptyList()), 1, (g, route, body) ->
+        {
+            sent.add(body.toString());
+            return send.apply(body.toString());
+        });
+    }
+}
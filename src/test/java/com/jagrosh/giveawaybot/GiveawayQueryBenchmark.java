@@ -0,0 +1,121 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import com.jagrosh.giveawaybot.data.Giveaway;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Function;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.Query;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Latency of the Giveaway named queries against a local ObjectDB file filled
+ * with millions of giveaways. Only runs with -Dbenchmark=true; the size and file
+ * can be set with -Dbenchmark.giveaways and -Dbenchmark.file. The file is reused
+ * if it already holds the requested number of giveaways, so to compare schemas,
+ * run once per build with a different file for each.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class GiveawayQueryBenchmark
+{
+    private final static int GUILDS = 100000, CHANNELS_PER_GUILD = 5, BATCH_SIZE = 10000,
+                             WARMUP = 50, RUNS = 500;
+    private final static long START = Instant.parse("2022-01-01T00:00:00Z").getEpochSecond(),
+                              SPREAD = 60 * 60 * 24 * 14;
+
+    @Test
+    public void benchmarkQueries()
+    {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        int size = Integer.getInteger("benchmark.giveaways", 2000000);
+        String file = System.getProperty("benchmark.file", "target/benchmark/giveaways.odb");
+
+        EntityManagerFactory emf = Persistence.createEntityManagerFactory(file);
+        EntityManager em = emf.createEntityManager();
+        try
+        {
+            fill(em, size);
+            Random random = new Random(1);
+            System.out.println(String.format("%d giveaways in %s", size, file));
+            System.out.println(String.format("%-28s %10s %10s", "query", "median us", "p99 us"));
+            run(em, "Giveaway.countAllFromChannel", q -> q.setParameter("channelId", channel(random)));
+            run(em, "Giveaway.countAllFromGuild", q -> q.setParameter("guildId", (long) random.nextInt(GUILDS)));
+            run(em, "Giveaway.getAllFromChannel", q -> q.setParameter("channelId", channel(random)));
+            run(em, "Giveaway.getAllFromGuild", q -> q.setParameter("guildId", (long) random.nextInt(GUILDS)));
+            run(em, "Giveaway.getAllEndingBefore", q -> q.setParameter("endTime", START + random.nextInt(60 * 60)));
+        }
+        finally
+        {
+            em.close();
+            emf.close();
+        }
+    }
+
+    private void fill(EntityManager em, int size)
+    {
+        long existing = em.createNamedQuery("Giveaway.countAll", Long.class).getSingleResult();
+        if(existing == size)
+            return;
+        em.getTransaction().begin();
+        em.createQuery("DELETE FROM Giveaway g").executeUpdate();
+        em.getTransaction().commit();
+
+        Random random = new Random(0);
+        for(int i = 0; i < size; i += BATCH_SIZE)
+        {
+            em.getTransaction().begin();
+            for(int j = i; j < Math.min(size, i + BATCH_SIZE); j++)
+            {
+                Giveaway g = new Giveaway(random.nextLong(), Instant.ofEpochSecond(START + (long) (random.nextDouble() * SPREAD)), 1, "prize", null);
+                long guild = random.nextInt(GUILDS);
+                g.setMessageId(j + 1);
+                g.setGuildId(guild);
+                g.setChannelId(guild * CHANNELS_PER_GUILD + random.nextInt(CHANNELS_PER_GUILD));
+                em.persist(g);
+            }
+            em.getTransaction().commit();
+            em.clear();
+        }
+    }
+
+    private void run(EntityManager em, String name, Function<Query, Query> parameters)
+    {
+        long[] times = new long[RUNS];
+        for(int i = -WARMUP; i < RUNS; i++)
+        {
+            long start = System.nanoTime();
+            parameters.apply(em.createNamedQuery(name)).getResultList();
+            long time = System.nanoTime() - start;
+            em.clear();
+            if(i >= 0)
+                times[i] = time;
+        }
+        Arrays.sort(times);
+        System.out.println(String.format("%-28s %10d %10d", name, times[RUNS / 2] / 1000, times[RUNS * 99 / 100] / 1000));
+    }
+
+    private static long channel(Random random)
+    {
+        return (long) random.nextInt(GUILDS) * CHANNELS_PER_GUILD + random.nextInt(CHANNELS_PER_GUILD);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import com.jagrosh.giveawaybot.data.EntrySet;
+import com.jagrosh.giveawaybot.util.LongHashSet;
+import com.jagrosh.giveawaybot.util.PackedLongSet;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class LongSetTest
+{
+    @Test
+    public void hashSetTest()
+    {
+        Random random = new Random(1);
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<>();
+        for(int i = 0; i < 200000; i++)
+        {
+            long v = random.nextInt(50000) - 10;
+            if(random.nextBoolean())
+                assertEquals(expected.add(v), set.add(v));
+            else
+                assertEquals(expected.remove(v), set.remove(v));
+        }
+        assertEquals(expected.size(), set.size());
+        for(long v = -10; v < 50000; v++)
+            assertEquals(expected.contains(v), set.contains(v));
+    }
+    
+    @Test
+    public void packedSetTest() throws Exception
+    {
+        long[] ids = snowflakes(10000, 2);
+        PackedLongSet packed = PackedLongSet.of(ids);
+        assertEquals(ids.length, packed.size());
+        assertArrayEquals(ids, packed.toArray());
+        for(long id: ids)
+        {
+            assertTrue(packed.contains(id));
+            assertFalse(packed.contains(id + 1));
+        }
+        assertTrue(packed.getMemorySize() < ids.length * 8L);
+        
+        // the persisted form reads back to the same set
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        packed.writeTo(new DataOutputStream(bytes));
+        PackedLongSet read = PackedLongSet.readFrom(ByteBuffer.wrap(bytes.toByteArray()));
+        assertArrayEquals(ids, read.toArray());
+    }
+    
+    @Test
+    public void entrySetTest()
+    {
+        long[] ids = snowflakes(150000, 3);
+        EntrySet set = new EntrySet();
+        for(long id: ids)
+            assertTrue(set.add(id));
+        assertTrue(set.isPacked());
+        assertEquals(ids.length, set.size());
+        assertFalse(set.add(ids[5]));
+        assertTrue(set.remove(ids[5]));
+        assertFalse(set.contains(ids[5]));
+        assertTrue(set.add(ids[5]));
+        assertTrue(set.remove(ids[7]));
+        assertEquals(ids.length - 1, set.size());
+        long[] all = set.toArray();
+        Arrays.sort(all);
+        assertArrayEquals(all, set.toPacked().toArray());
+    }
+    
+    // sorted, distinct snowflake-shaped ids
+    private static long[] snowflakes(int count, long seed)
+    {
+        Random random = new Random(seed);
+        long[] ids = new long[count];
+        for(int i = 0; i < count; i++)
+            ids[i] = (long)(random.nextDouble() * 2.5e11) << 22 | random.nextInt(1 << 22);
+        Arrays.sort(ids);
+        return Arrays.stream(ids).distinct().toArray();
+    }
+}
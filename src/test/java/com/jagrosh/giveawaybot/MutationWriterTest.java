@@ -0,0 +1,144 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import com.jagrosh.giveawaybot.data.MemoryStorage;
+import com.jagrosh.giveawaybot.data.MutationWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class MutationWriterTest
+{
+    @Test
+    public void testGroupCommit() throws InterruptedException
+    {
+        CountingStorage storage = new CountingStorage();
+        CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        MutationWriter writer = new MutationWriter(storage, r -> 
+        {
+            // hold the first commit until everything else has queued
+            started.countDown();
+            await(release);
+            r.run();
+        }, MutationWriter.Durability.ASYNC);
+        
+        AtomicInteger applied = new AtomicInteger();
+        writer.write(0L, s -> null, r -> applied.incrementAndGet());
+        started.await();
+        for(long i = 1; i < 100; i++)
+        {
+            long id = i;
+            writer.write(id, s -> 
+            {
+                s.updateUser(id, u -> u.setUsername("user"));
+                return null;
+            }, r -> applied.incrementAndGet());
+        }
+        release.countDown();
+        writer.close();
+        
+        assertEquals(100, applied.get());
+        assertEquals(2, storage.batches.get());
+        assertEquals("user", storage.getUser(99L).getUsername());
+    }
+    
+    @Test
+    public void testFailureIsolated()
+    {
+        CountingStorage storage = new CountingStorage();
+        MutationWriter writer = new MutationWriter(storage, Runnable::run, MutationWriter.Durability.GROUP);
+        AtomicInteger applied = new AtomicInteger();
+        writer.write(0L, s -> null, r -> applied.incrementAndGet());
+        try
+        {
+            writer.write(0L, s -> { throw new IllegalStateException("bad write"); }, r -> applied.incrementAndGet());
+            fail("Expected the failed write to be rethrown");
+        }
+        catch(IllegalStateException expected) {}
+        writer.write(0L, s -> null, r -> applied.incrementAndGet());
+        writer.close();
+        assertEquals(2, applied.get());
+    }
+    
+    @Test
+    public void testCloseWhileWriting() throws InterruptedException
+    {
+        // writers racing the close either get in before it or are refused; none hang
+        MutationWriter writer = new MutationWriter(new CountingStorage(), Runnable::run, MutationWriter.Durability.GROUP);
+        AtomicInteger written = new AtomicInteger(), applied = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for(int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread(() -> 
+            {
+                try
+                {
+                    while(true)
+                    {
+                        writer.write(0L, s -> null, r -> applied.incrementAndGet());
+                        written.incrementAndGet();
+                    }
+                }
+                catch(IllegalStateException closed) {}
+            });
+            threads[i].start();
+        }
+        Thread.sleep(50);
+        writer.close();
+        for(Thread t: threads)
+        {
+            t.join(5000);
+            assertFalse(t.isAlive());
+        }
+        assertEquals(written.get(), applied.get());
+        try
+        {
+            writer.write(0L, s -> null, r -> applied.incrementAndGet());
+            fail("Expected the closed writer to refuse the write");
+        }
+        catch(IllegalStateException expected) {}
+    }
+    
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        }
+        catch(InterruptedException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private static class CountingStorage extends MemoryStorage
+    {
+        private final AtomicInteger batches = new AtomicInteger();
+        
+        @Override
+        public void batch(Runnable work)
+        {
+            batches.incrementAndGet();
+            super.batch(work);
+        }
+    }
+}
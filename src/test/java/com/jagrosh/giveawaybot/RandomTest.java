@@ -17,7 +17,10 @@ package com.jagrosh.giveawaybot;
 
 import com.jagrosh.giveawaybot.util.GiveawayUtil;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -36,6 +39,32 @@ public class RandomTest
         runTrials(10, 1000, 3);
     }
     
+    @Test
+    public void idSelectionTest()
+    {
+        long[] ids = { 5L, 6L, 7L, 8L, 9L };
+        long[] winners = GiveawayUtil.selectWinners(ids, 3);
+        assertEquals(3, winners.length);
+        assertEquals(3, Arrays.stream(winners).distinct().filter(w -> w >= 5L && w <= 9L).count());
+        assertArrayEquals(new long[]{ 5L, 6L, 7L, 8L, 9L }, ids);
+        assertEquals(5, GiveawayUtil.selectWinners(ids, 10).length);
+    }
+    
+    @Test
+    public void resolvedSelectionTest()
+    {
+        // only even ids resolve, so odd picks are replaced until enough are found
+        long[] ids = { 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L };
+        Function<long[], List<Long>> evens = picks -> Arrays.stream(picks).filter(id -> id % 2 == 0).boxed().collect(Collectors.toList());
+        for(int i = 0; i < 100; i++)
+        {
+            List<Long> winners = GiveawayUtil.selectWinners(ids, 3, evens);
+            assertEquals(3, winners.size());
+            assertEquals(3, winners.stream().distinct().filter(w -> w % 2 == 0).count());
+        }
+        assertEquals(4, GiveawayUtil.selectWinners(ids, 10, evens).size());
+    }
+    
     private void runTrials(int numEntrants, int numTrials, int numWinners)
     {
         // construct initial structures
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Responses are status codes here: 429 is rate limited on the channel for 100ms,
+ * and 430 is rate limited globally for 100ms.
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class RestDispatcherTest
+{
+    private final static long GUILD_A = 1L, GUILD_B = 2L, GUILD_C = 3L;
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, CompletableFuture<Integer>> pending = new ConcurrentHashMap<>();
+    private RestDispatcher<Integer> dispatcher;
+
+    @After
+    public void shutdown()
+    {
+        if(dispatcher != null)
+            dispatcher.shutdown();
+    }
+
+    @Test
+    public void testChannelSerialization()
+    {
+        dispatcher = dispatcher(10);
+        CompletableFuture<Integer> first = dispatcher.submit(GUILD_A, 10L, held("first"));
+        CompletableFuture<Integer> second = dispatcher.submit(GUILD_A, 10L, held("second"));
+        dispatcher.submit(GUILD_A, 11L, held("other"));
+
+        // the other channel is not held up, but the same channel waits its turn
+        assertEquals(2, calls.size());
+        assertTrue(calls.contains("first") && calls.contains("other"));
+        pending.get("first").complete(200);
+        assertEquals(200, (int) first.join());
+        assertEquals(3, calls.size());
+        pending.get("second").complete(204);
+        assertEquals(204, (int) second.join());
+    }
+
+    @Test
+    public void testGuildFairness()
+    {
+        // one at a time, so the order of turns is visible
+        dispatcher = dispatcher(1);
+        dispatcher.submit(GUILD_C, 30L, held("blocker"));
+        for(int i = 0; i < 4; i++)
+            dispatcher.submit(GUILD_A, 10L + i, held("a" + i));
+        dispatcher.submit(GUILD_B, 20L, held("b"));
+        for(String call: new String[]{ "blocker", "a0", "b", "a1", "a2", "a3" })
+        {
+            assertEquals(call, calls.get(calls.size() - 1));
+            pending.get(call).complete(200);
+        }
+        assertEquals(6, calls.size());
+    }
+
+    @Test
+    public void testChannelBackoff()
+    {
+        dispatcher = dispatcher(10);
+        long start = System.nanoTime();
+        CompletableFuture<Integer> limited = dispatcher.submit(GUILD_A, 10L, responses(429, 200));
+        CompletableFuture<Integer> other = dispatcher.submit(GUILD_A, 11L, responses(200));
+        assertEquals(200, (int) other.join());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(200, (int) limited.join());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+        assertEquals(3, calls.size());
+    }
+
+    @Test
+    public void testGlobalBackoff()
+    {
+        // a global limit holds up other guilds and channels too
+        dispatcher = dispatcher(10);
+        long start = System.nanoTime();
+        CompletableFuture<Integer> limited = dispatcher.submit(GUILD_A, 10L, responses(430, 200));
+        CompletableFuture<Integer> other = dispatcher.submit(GUILD_B, 20L, responses(200));
+        assertEquals(200, (int) other.join());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+        assertEquals(200, (int) limited.join());
+        assertEquals(3, calls.size());
+    }
+
+    @Test
+    public void testRetryExhaustion()
+    {
+        dispatcher = new RestDispatcher<>(10, code -> code == 429 ? new RestDispatcher.RateLimit(10, false) : null);
+        CompletableFuture<Integer> limited = dispatcher.submit(GUILD_A, 10L, responses(429, 429, 429, 429, 429));
+        try
+        {
+            limited.join();
+            fail("Expected the request to fail");
+        }
+        catch(CompletionException ex)
+        {
+            assertTrue(ex.getCause() instanceof RestDispatcher.RateLimitedException);
+        }
+        assertEquals(4, calls.size());
+    }
+
+    @Test
+    public void testChannelsForgotten() throws InterruptedException
+    {
+        dispatcher = dispatcher(10);
+        dispatcher.submit(GUILD_A, 10L, responses(200)).join();
+        assertEquals(0, dispatcher.countChannels());
+
+        // kept while its rate limit lasts, and then forgotten
+        dispatcher.submit(GUILD_A, 11L, responses(429, 200)).join();
+        dispatcher.submit(GUILD_A, 12L, responses(429, 429, 429, 429)).handle((r, ex) -> r).join();
+        assertEquals(1, dispatcher.countChannels());
+        Thread.sleep(200);
+        assertEquals(0, dispatcher.countChannels());
+    }
+
+    @Test
+    public void testShutdown()
+    {
+        dispatcher = dispatcher(1);
+        CompletableFuture<Integer> inFlight = dispatcher.submit(GUILD_A, 10L, held("first"));
+        CompletableFuture<Integer> queued = dispatcher.submit(GUILD_A, 10L, held("second"));
+        CompletableFuture<Integer> limited = dispatcher.submit(GUILD_B, 20L, responses(429, 200));
+        dispatcher.shutdown();
+        for(CompletableFuture<Integer> f: Arrays.asList(queued, limited))
+        {
+            try
+            {
+                f.join();
+                fail("Expected the request to fail");
+            }
+            catch(CompletionException ex)
+            {
+                assertTrue(ex.getCause() instanceof IllegalStateException);
+            }
+        }
+        pending.get("first").complete(200);
+        assertEquals(200, (int) inFlight.join());
+        assertTrue(dispatcher.submit(GUILD_A, 10L, responses(200)).isCompletedExceptionally());
+    }
+
+    private RestDispatcher<Integer> dispatcher(int maxInFlight)
+    {
+        return new RestDispatcher<>(maxInFlight, code -> code == 429 ? new RestDispatcher.RateLimit(100, false)
+                : code == 430 ? new RestDispatcher.RateLimit(100, true) : null);
+    }
+
+    // completes only when the test completes it
+    private Supplier<CompletableFuture<Integer>> held(String name)
+    {
+        return () ->
+        {
+            CompletableFuture<Integer> f = new CompletableFuture<>();
+            pending.put(name, f);
+            calls.add(name);
+            return f;
+        };
+    }
+
+    // responds with each code in turn, one per attempt
+    private Supplier<CompletableFuture<Integer>> responses(int... codes)
+    {
+        int[] attempt = { 0 };
+        return () ->
+        {
+            calls.add("attempt");
+            return CompletableFuture.completedFuture(codes[Math.min(attempt[0]++, codes.length - 1)]);
+        };
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import com.jagrosh.giveawaybot.data.CachedUser;
+import com.jagrosh.giveawaybot.data.Database;
+import com.jagrosh.giveawaybot.data.Giveaway;
+import com.jagrosh.giveawaybot.data.MemoryStorage;
+import com.jagrosh.giveawaybot.data.MutationWriter;
+import com.jagrosh.giveawaybot.data.ShardedStorage;
+import java.awt.Color;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class ShardedStorageTest
+{
+    @Test
+    public void testShardName()
+    {
+        assertEquals("objectdb://localhost/giveaways-2.odb", ShardedStorage.shardName("objectdb://localhost/giveaways.odb", 2));
+        assertEquals("data/giveaways-0.mv.db", ShardedStorage.shardName("data/giveaways.mv.db", 0));
+        assertEquals("giveaways-1", ShardedStorage.shardName("giveaways", 1));
+    }
+    
+    @Test
+    public void testFanOut()
+    {
+        MemoryStorage[] shards = { new MemoryStorage(), new MemoryStorage(), new MemoryStorage(), new MemoryStorage() };
+        Database db = new Database(new ShardedStorage(shards));
+        for(long guild = 1; guild <= 40; guild++)
+        {
+            Giveaway g = new Giveaway(guild, Instant.now(), 1, "prize", null);
+            g.setMessageId(1000 + guild);
+            g.setGuildId(guild);
+            g.setChannelId(7L);
+            db.createGiveaway(g);
+            db.setGuildColor(guild, Color.RED);
+        }
+        
+        // every shard got some of the guilds, and queries see all of them
+        for(MemoryStorage s: shards)
+            assertFalse(s.getGiveawaysByChannel(7L).isEmpty());
+        assertEquals(40, db.getGiveawaysByChannel(7L).size());
+        assertEquals(1, db.getGiveawaysByGuild(5L).size());
+        assertEquals("prize", db.getGiveaway(1005L).getPrize());
+        
+        // reopened, giveaways are found by id again
+        db.shutdown();
+        ShardedStorage reopened = new ShardedStorage(shards);
+        assertEquals(5L, reopened.getGiveaway(1005L).getGuildId());
+        assertEquals(Color.RED, reopened.getSettings(5L).getColor());
+        reopened.removeGiveaway(1005L);
+        assertNull(reopened.getGiveaway(1005L));
+        
+        // users come back in the order asked for
+        for(long id = 1; id <= 50; id++)
+            reopened.updateUser(id, u -> u.setUsername("user"));
+        List<CachedUser> users = reopened.getUsers(new long[]{ 42L, 7L, 99L, 13L });
+        assertEquals(3, users.size());
+        assertEquals(42L, users.get(0).getId());
+        assertEquals(7L, users.get(1).getId());
+        assertEquals(13L, users.get(2).getId());
+        reopened.close();
+    }
+    
+    @Test
+    public void testWriterPerShard() throws InterruptedException
+    {
+        // a shard whose commit is held up does not hold up writes to the other
+        CountDownLatch release = new CountDownLatch(1);
+        MemoryStorage slow = new MemoryStorage()
+        {
+            @Override
+            public void batch(Runnable work)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch(InterruptedException ex)
+                {
+                    throw new RuntimeException(ex);
+                }
+                super.batch(work);
+            }
+        };
+        ShardedStorage storage = new ShardedStorage(slow, new MemoryStorage());
+        long slowUser = 1L, fastUser = 1L;
+        while(storage.partitionOf(slowUser) != 0)
+            slowUser++;
+        while(storage.partitionOf(fastUser) != 1)
+            fastUser++;
+        
+        MutationWriter writer = new MutationWriter(storage, Runnable::run, MutationWriter.Durability.ASYNC);
+        CountDownLatch written = new CountDownLatch(1);
+        long slowId = slowUser, fastId = fastUser;
+        writer.write(slowId, s -> 
+        {
+            s.updateUser(slowId, u -> u.setUsername("slow"));
+            return null;
+        }, r -> {});
+        writer.write(fastId, s -> 
+        {
+            s.updateUser(fastId, u -> u.setUsername("fast"));
+            return null;
+        }, r -> written.countDown());
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        assertEquals("fast", storage.getUser(fastId).getUsername());
+        assertNull(storage.getUser(slowId));
+        
+        release.countDown();
+        writer.close();
+        assertEquals("slow", storage.getUser(slowId).getUsername());
+        storage.close();
+    }
+}
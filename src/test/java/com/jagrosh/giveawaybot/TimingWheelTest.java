@@ -0,0 +1,79 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import com.jagrosh.giveawaybot.util.TimingWheel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class TimingWheelTest
+{
+    @Test
+    public void testExactSecond()
+    {
+        long start = 1650000000L;
+        Random random = new Random(7);
+        TimingWheel wheel = new TimingWheel(start);
+        Map<Long, Long> deadlines = new HashMap<>();
+        for(long id = 1; id <= 5000; id++)
+        {
+            // from a few seconds to a few months out
+            long deadline = start + 1 + (long) Math.pow(random.nextDouble(), 4) * 60L * 60 * 24 * 90;
+            deadlines.put(id, deadline);
+            wheel.schedule(id, deadline);
+        }
+        for(long id = 1; id <= 5000; id += 10)
+        {
+            assertTrue(wheel.cancel(id));
+            deadlines.remove(id);
+        }
+        long last = start + 60L * 60 * 24 * 91;
+        for(long now = start + 1; now <= last; now++)
+            for(long id: wheel.advance(now))
+                assertEquals(now, (long) deadlines.remove(id));
+        assertTrue(deadlines.isEmpty());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPastAndSkipped()
+    {
+        TimingWheel wheel = new TimingWheel(1000);
+        wheel.schedule(1, 500);
+        wheel.schedule(2, 1000);
+        wheel.schedule(3, 1100);
+        wheel.schedule(3, 5000);
+        assertArrayEquals(new long[]{1, 2}, sorted(wheel.advance(1000)));
+        // a late tick still returns everything that came due in between
+        assertEquals(0, wheel.advance(4999).length);
+        assertArrayEquals(new long[]{3}, wheel.advance(7000));
+        assertFalse(wheel.contains(3));
+    }
+
+    private static long[] sorted(long[] arr)
+    {
+        Arrays.sort(arr);
+        return arr;
+    }
+}
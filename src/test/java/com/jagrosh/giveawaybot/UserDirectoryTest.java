@@ -0,0 +1,99 @@
+/*
+ * Copyright 2022 John Grosh (john.a.grosh@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jagrosh.giveawaybot;
+
+import com.jagrosh.giveawaybot.data.CachedUser;
+import com.jagrosh.giveawaybot.data.MemoryStorage;
+import com.jagrosh.giveawaybot.data.UserDirectory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author John Grosh (john.a.grosh@gmail.com)
+ */
+public class UserDirectoryTest
+{
+    @Test
+    public void testCoalescing()
+    {
+        AtomicInteger batches = new AtomicInteger(), triggers = new AtomicInteger();
+        MemoryStorage storage = new MemoryStorage()
+        {
+            @Override
+            public void updateUsers(Map<Long, Consumer<CachedUser>> updates)
+            {
+                batches.incrementAndGet();
+                super.updateUsers(updates);
+            }
+        };
+        UserDirectory users = new UserDirectory(storage, triggers::incrementAndGet);
+        
+        // repeated updates to one user are merged into the latest
+        assertTrue(users.update(1L, "a", "0001", null));
+        assertTrue(users.update(1L, "b", "0001", null));
+        assertTrue(users.update(2L, "c", "0002", "hash"));
+        assertEquals(2, users.getPendingCount());
+        assertNull(storage.getUser(1L));
+        users.flush();
+        assertEquals(1, batches.get());
+        assertEquals("b", storage.getUser(1L).getUsername());
+        assertEquals("hash", storage.getUser(2L).getAvatar());
+        
+        // unchanged profiles are not queued at all
+        assertFalse(users.update(1L, "b", "0001", null));
+        assertEquals(0, users.getPendingCount());
+        users.flush();
+        assertEquals(1, batches.get());
+        
+        // flushing for a read only writes the users being read
+        users.update(1L, "d", "0001", null);
+        users.update(3L, "e", "0003", null);
+        users.flush(new long[]{ 1L });
+        assertEquals("d", storage.getUser(1L).getUsername());
+        assertNull(storage.getUser(3L));
+        assertEquals(1, users.getPendingCount());
+        
+        for(long i = 0; i < UserDirectory.FLUSH_THRESHOLD; i++)
+            users.update(100L + i, "user", "0000", null);
+        assertEquals(1, triggers.get());
+        
+        // past the threshold it triggers once per flush
+        users.update(5L, "g", "0005", null);
+        assertEquals(1, triggers.get());
+        users.flush();
+        for(long i = 0; i < UserDirectory.FLUSH_THRESHOLD; i++)
+            users.update(10000L + i, "user", "0000", null);
+        assertEquals(2, triggers.get());
+        
+        // after a restart, profiles that storage already has are not written again
+        users.flush();
+        int before = batches.get();
+        UserDirectory restarted = new UserDirectory(storage, () -> {});
+        assertTrue(restarted.update(1L, "d", "0001", null));
+        assertTrue(restarted.update(2L, "c", "0002", "hash"));
+        restarted.flush();
+        assertEquals(before, batches.get());
+        assertFalse(restarted.update(1L, "d", "0001", null));
+        assertTrue(restarted.update(2L, "f", "0002", "hash"));
+        restarted.flush();
+        assertEquals(before + 1, batches.get());
+        assertEquals("f", storage.getUser(2L).getUsername());
+    }
+}